@@ -0,0 +1,26 @@
+package io.solit.deb;
+
+/**
+ * Compression of control and data archives of a deb package
+ * @author yaga
+ * @since 16.10.26
+ */
+public enum Compression {
+    gzip(".gz"),
+    xz(".xz"),
+    zstd(".zst"),
+    none("");
+
+    private final String extension;
+
+    Compression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return extension of a compressed tar archive, e.g. <code>.gz</code> for <code>data.tar.gz</code>
+     */
+    public String getExtension() {
+        return extension;
+    }
+}
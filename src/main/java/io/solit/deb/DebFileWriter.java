@@ -1,62 +1,738 @@
 package io.solit.deb;
 
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
 
 /**
  * @author yaga
  * @since 18.01.18
  */
 public class DebFileWriter implements AutoCloseable {
+    public static final long DEFAULT_MAPPED_THRESHOLD = 64 * 1024 * 1024;
     private static final String AR_HEADER = "!<arch>\n";
+    private static final String CONTROL_ARCHIVE = "control.tar", DATA_ARCHIVE = "data.tar";
     private static final String DEB_VERSION = "2.0";
     private static final int BEFORE_CONTROL_STAGE = 2, BEFORE_DATA_SAGE = 4, FINAL_STAGE = 6;
     private static final int HEADER_LENGTH = 60, FILENAME_LENGTH = 16, MOD_TIME_LENGTH = 12;
     private static final long SIZE_OFFSET = 48;
+    private static final long MAX_MEMBER_SIZE = 9_999_999_999L; // ten decimal digits of a size field
     private static final String OWNER_ID = "0     ", GROUP_ID = "0     ", FILE_MODE = "100644  ", SIZE_PLACEHOLDER = "          ";
     private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
-    private final RandomAccessFile _randomAccessFile;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MEMBER_MEMORY_LIMIT = 1024 * 1024;
+    private static final int TAR_RECORD_SIZE = 512;
+    private static final byte[] SKIPPED_CONTENT = new byte[0x10000];
+    private static final int ZERO_CHUNK_SIZE = 0x10000;
+    private static final int SAMPLE_SIZE = 0x10000, MIN_SAMPLED_SIZE = SAMPLE_SIZE;
+    private static final long MIN_PREFETCHED_SIZE = 1024 * 1024;
+    private final WritableByteChannel _out;
+    private final FileChannel _channel;
+    private final Instant _modificationTime;
+    private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private int _stage;
+    private File _spool;
+    private boolean _spoolComplete;
+    private Compression _compression = Compression.gzip;
+    private Integer _compressionLevel;
+    private int _compressionDictionarySize;
+    private int _compressionThreads = 1;
+    private int _compressionBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+    private boolean _segmentedData, _sparseData;
+    private long _mappedThreshold = DEFAULT_MAPPED_THRESHOLD;
+    private int _adaptiveGain, _dataLevel;
+    private boolean _pipelined;
+    private ExecutorService _prefetcher;
+    private Deflater _sampler;
+    private long _sampledEntries, _sampledSize, _storedEntries, _storedSize;
+    private TarArchiveOutputStream _dataArchive;
+    private DebOutputStream _dataStream;
+    private GzipSegmentOutputStream _dataGzip;
+    private Path _spoolDirectory;
+    private MemberSpool _openSpool;
 
     public DebFileWriter(File file) throws IOException {
-        _randomAccessFile = new RandomAccessFile(file, "rw");
-        _randomAccessFile.write(AR_HEADER.getBytes(CHARSET));
-        try (Writer os = new OutputStreamWriter(new DebOutputStream("debian-binary", "debian-binary"), CHARSET)) {
-            os.write(DEB_VERSION + "\n");
+        this(file, Instant.now());
+    }
+
+    public DebFileWriter(OutputStream sink) throws IOException {
+        this(sink, Instant.now());
+    }
+
+    /**
+     * Create a deb file writer with a fixed modification time of package members, e.g. for reproducible builds
+     * @param file file to write a package to
+     * @param modificationTime modification time of package members
+     * @throws IOException if unable to write a package
+     */
+    public DebFileWriter(File file, Instant modificationTime) throws IOException {
+        this(FileChannel.open(
+                file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        ), true, modificationTime);
+    }
+
+    /**
+     * Create a deb file writer, streaming a package to a non-seekable sink, e.g. a pipe or an upload.
+     * <p>
+     *     Since size of every ar member is written before its content, members are spooled until they are closed:
+     *     in memory up to a megabyte, and to a temporary file after that, see {@link #setSpoolDirectory}.
+     *     Data archive, {@link #spoolData spooled} before a control one, is written without spooling it again.
+     *     Sink is closed when this writer is closed
+     * @param sink stream to write a package to
+     * @param modificationTime modification time of package members
+     * @throws IOException if unable to write a package
+     */
+    public DebFileWriter(OutputStream sink, Instant modificationTime) throws IOException {
+        this(Channels.newChannel(sink), modificationTime);
+    }
+
+    /**
+     * Create a deb file writer, streaming a package to a non-seekable sink,
+     * see {@link #DebFileWriter(OutputStream, Instant)}
+     * @param sink channel to write a package to
+     * @param modificationTime modification time of package members
+     * @throws IOException if unable to write a package
+     */
+    public DebFileWriter(WritableByteChannel sink, Instant modificationTime) throws IOException {
+        this(Objects.requireNonNull(sink, "Sink should not be null"), false, modificationTime);
+    }
+
+    private DebFileWriter(WritableByteChannel out, boolean seekable, Instant modificationTime) throws IOException {
+        _out = out;
+        _channel = seekable ? (FileChannel) out : null;
+        try {
+            _modificationTime = Objects.requireNonNull(modificationTime, "Modification time should not be null");
+            byte[] header = AR_HEADER.getBytes(CHARSET);
+            writeBytes(header, 0, header.length);
+            try (Writer os = new OutputStreamWriter(new DebOutputStream("debian-binary", "debian-binary"), CHARSET)) {
+                os.write(DEB_VERSION + "\n");
+            }
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
         }
     }
 
+    /**
+     * Set directory for temporary files of members, spooled before they are written to a non-seekable sink.
+     * Default temporary directory is used by default
+     * @param spoolDirectory directory, or null for a default one
+     */
+    public void setSpoolDirectory(File spoolDirectory) {
+        _spoolDirectory = spoolDirectory == null ? null : spoolDirectory.toPath();
+    }
+
+    /**
+     * Set compression of control and data archives, gzip by default
+     * @param compression archive compression
+     */
+    public void setCompression(Compression compression) {
+        _compression = Objects.requireNonNull(compression, "Compression should not be null");
+    }
+
+    /**
+     * Set compression level of a data archive: 0-9 for gzip and xz, 1-22 for zstd
+     * @param compressionLevel compression level, or null for a default level of a compression
+     */
+    public void setCompressionLevel(Integer compressionLevel) {
+        _compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Set dictionary (window) size of a data archive compression. Applies to xz and zstd only,
+     * gzip always uses 32 kilobytes
+     * @param compressionDictionarySize dictionary size in bytes, or zero for a default size of a compression level
+     */
+    public void setCompressionDictionarySize(int compressionDictionarySize) {
+        if (compressionDictionarySize < 0)
+            throw new IllegalArgumentException("Dictionary size should not be negative: " + compressionDictionarySize);
+        _compressionDictionarySize = compressionDictionarySize;
+    }
+
+    /**
+     * Set number of threads to compress data archive with. If more than one thread is used,
+     * gzip and xz data is compressed by blocks, see {@link ParallelGzipOutputStream} and
+     * {@link ParallelXzOutputStream}, while zstd uses its own workers
+     * @param compressionThreads number of threads, one by default
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1)
+            throw new IllegalArgumentException("Number of compression threads should be positive: " + compressionThreads);
+        _compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Set size of a block, compressed by a single thread, when gzip or xz data is compressed by several threads.
+     * Xz blocks are at least three times the dictionary size
+     * @param compressionBlockSize block size in bytes
+     */
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        if (compressionBlockSize < ParallelGzipOutputStream.DICTIONARY_SIZE)
+            throw new IllegalArgumentException(
+                    "Compression block size should be at least " + ParallelGzipOutputStream.DICTIONARY_SIZE + " bytes"
+            );
+        _compressionBlockSize = compressionBlockSize;
+    }
+
+    /**
+     * Set whether gzip data archive is written as a sequence of gzip members, so archive entries may be
+     * compressed as separate segments, see {@link #writeSegment} and {@link #spliceSegment}.
+     * Segmented data is compressed by a single thread, and is ignored by other compressions
+     * @param segmentedData whether data archive is segmented, false by default
+     */
+    public void setSegmentedData(boolean segmentedData) {
+        _segmentedData = segmentedData;
+    }
+
+    /**
+     * Set whether runs of zeros in data archive entries, e.g. holes of sparse files, are written without
+     * deflating them, see {@link #transferEntry(TarArchiveOutputStream, FileChannel, long, MessageDigest)}.
+     * Applies to gzip compressed by a single thread only
+     * @param sparseData whether zero runs are written without deflating them, false by default
+     */
+    public void setSparseData(boolean sparseData) {
+        _sparseData = sparseData;
+    }
+
+    /**
+     * Set minimal size of an entry content, which is read from memory mapped windows by
+     * {@link #transferEntry(TarArchiveOutputStream, FileChannel, long, MessageDigest)}, 64 megabytes by default
+     * @param mappedThreshold size in bytes
+     */
+    public void setMappedThreshold(long mappedThreshold) {
+        if (mappedThreshold < 0)
+            throw new IllegalArgumentException("Mapped threshold should not be negative: " + mappedThreshold);
+        _mappedThreshold = mappedThreshold;
+    }
+
+    /**
+     * Enable adaptive compression of a data archive. Before an entry content of at least 64 kilobytes is written,
+     * its first 64 kilobytes are deflated with a fastest level, and if they shrink by less than a minimal gain,
+     * content is stored without compression. Applies to gzip compressed by a single thread only
+     * @param minimalGain minimal gain in percents, or zero to disable adaptive compression
+     */
+    public void setAdaptiveCompression(int minimalGain) {
+        if (minimalGain < 0 || minimalGain > 100)
+            throw new IllegalArgumentException("Minimal compression gain should be within 0-100%: " + minimalGain);
+        _adaptiveGain = minimalGain;
+    }
+
+    /**
+     * Set whether data archive is written by a pipeline of threads: entry content of at least a megabyte
+     * is read ahead by a reading thread, see {@link PrefetchInputStream}, and compressed data is written
+     * by a writing thread, see {@link PipelinedOutputStream}, while a calling thread frames and compresses it.
+     * Content of an uncompressed data archive is transferred directly, and is not read ahead
+     * @param pipelined whether data archive is written by a pipeline, false by default
+     */
+    public void setPipelined(boolean pipelined) {
+        _pipelined = pipelined;
+    }
+
+    /**
+     * @return number of entries, which compressibility was sampled by adaptive compression
+     */
+    public long getSampledEntries() {
+        return _sampledEntries;
+    }
+
+    /**
+     * @return total content size of entries, which compressibility was sampled by adaptive compression
+     */
+    public long getSampledSize() {
+        return _sampledSize;
+    }
+
+    /**
+     * @return number of entries, stored without compression by adaptive compression
+     */
+    public long getStoredEntries() {
+        return _storedEntries;
+    }
+
+    /**
+     * @return total content size of entries, stored without compression by adaptive compression
+     */
+    public long getStoredSize() {
+        return _storedSize;
+    }
+
     public TarArchiveOutputStream openControl() throws IOException {
         if (_stage != BEFORE_CONTROL_STAGE)
             throw new IOException("Control stream was previously open");
-        TarArchiveOutputStream control = new TarArchiveOutputStream(
-                new GZIPOutputStream(new DebOutputStream("control", "control.tar.gz")),
-                StandardCharsets.UTF_8.name()
-        );
-        control.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-        return control;
+        return createTarArchive(compressControl(
+                new DebOutputStream("control", CONTROL_ARCHIVE + _compression.getExtension())
+        ));
     }
 
     public TarArchiveOutputStream openData() throws IOException {
         if (_stage != BEFORE_DATA_SAGE)
             throw new IOException("Data stream was previously open");
-        TarArchiveOutputStream data = new TarArchiveOutputStream(
-                new GZIPOutputStream(new DebOutputStream("data", "data.tar.gz")),
-                StandardCharsets.UTF_8.name()
+        if (_spool != null)
+            throw new IOException("Data stream was previously spooled");
+        DebOutputStream os = new DebOutputStream("data", DATA_ARCHIVE + _compression.getExtension());
+        if (_compression == Compression.none) {
+            // Every record is passed to a deb file immediately, so entry content may be transferred directly
+            _dataStream = os;
+            return _dataArchive = createRecordArchive(os);
+        }
+        return createDataArchive(os);
+    }
+
+    private TarArchiveOutputStream createDataArchive(OutputStream os) throws IOException {
+        if (_pipelined)
+            os = new PipelinedOutputStream(os);
+        boolean singleThread = _compressionThreads == 1 && (_adaptiveGain > 0 || _sparseData);
+        if (_compression != Compression.gzip || !_segmentedData && !singleThread)
+            return createTarArchive(compressData(os));
+        // Every record is passed to a compressor immediately, so segment boundaries match entry boundaries,
+        // compression level may be switched between entries, and runs of zeros in entry content
+        // may be written without deflating them
+        _dataGzip = new GzipSegmentOutputStream(os, _dataLevel = gzipLevel());
+        return _dataArchive = createRecordArchive(_dataGzip);
+    }
+
+    /**
+     * Check whether an open data archive is segmented
+     * @return true if entries may be written as segments
+     */
+    public boolean isDataSegmented() {
+        return _segmentedData && _dataGzip != null;
+    }
+
+    /**
+     * Write an entry to a segmented data archive as a separate compressed segment
+     * @param archive data archive
+     * @param entry entry to put
+     * @param source channel to read entry content from, starting from its current position
+     * @param recorder stream to copy compressed segment to, e.g. to splice it later, may be null
+     * @throws IOException if archive is not segmented, or unable to write an entry
+     */
+    public void writeSegment(
+            TarArchiveOutputStream archive, TarArchiveEntry entry, FileChannel source, OutputStream recorder
+    ) throws IOException {
+        checkSegmented(archive);
+        _dataGzip.startSegment(recorder);
+        archive.putArchiveEntry(entry);
+        transferEntry(archive, source, entry.getSize());
+        archive.closeArchiveEntry();
+        _dataGzip.endSegment();
+    }
+
+    /**
+     * Write an entry to a segmented data archive as a previously recorded compressed segment,
+     * without compressing its content again.
+     * <p>
+     *     Segment is inflated and its checksums and length are verified before it is written,
+     *     so nothing is written if a segment is damaged, and an entry may be written in another way
+     * @param archive data archive
+     * @param entry entry to put, should be the same as the recorded one
+     * @param segment channel of a file with a segment, recorded by {@link #writeSegment}
+     * @return true if a segment was written, false if it is damaged or does not match an entry
+     * @throws IOException if archive is not segmented, or unable to write an entry
+     */
+    public boolean spliceSegment(
+            TarArchiveOutputStream archive, TarArchiveEntry entry, FileChannel segment
+    ) throws IOException {
+        checkSegmented(archive);
+        try {
+            if (GzipSegmentOutputStream.checkSegment(segment) != recordedLength(entry))
+                return false;
+        } catch (ZipException e) {
+            return false;
+        }
+        _dataGzip.spliceSegment(segment);
+        // Keep archive entry accounting consistent, written records are skipped by a segment stream
+        archive.putArchiveEntry(entry);
+        writeSkipped(archive, entry.getSize());
+        archive.closeArchiveEntry();
+        _dataGzip.endSegment();
+        return true;
+    }
+
+    private long recordedLength(TarArchiveEntry entry) throws IOException {
+        long[] header = new long[1];
+        // every record is written immediately, so headers are counted as soon as an entry is put
+        createRecordArchive(new OutputStream() {
+            @Override
+            public void write(int b) {
+                header[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                header[0] += len;
+            }
+        }).putArchiveEntry(entry);
+        return header[0] + (entry.getSize() + TAR_RECORD_SIZE - 1) / TAR_RECORD_SIZE * TAR_RECORD_SIZE;
+    }
+
+    private void checkSegmented(TarArchiveOutputStream archive) throws IOException {
+        if (!isDataSegmented() || archive != _dataArchive)
+            throw new IOException("Data archive is not segmented");
+    }
+
+    /**
+     * Write content of a current data archive entry from a file channel.
+     * <p>
+     *     If data archive is not compressed, content is transferred from a channel to a deb file directly
+     *     by a file system, without passing through user space buffers. Otherwise it is just copied to an archive
+     * @param archive data archive, with an entry put
+     * @param source channel to read content from
+     * @param size number of bytes to write, starting from a current channel position
+     * @throws IOException if unable to read or write content
+     */
+    public void transferEntry(TarArchiveOutputStream archive, FileChannel source, long size) throws IOException {
+        transferEntry(archive, source, size, null);
+    }
+
+    /**
+     * Write content of a current data archive entry from a file channel, updating a digest with it.
+     * Entry content should not be written to an archive other than by this method.
+     * <p>
+     *     Content of at least {@link #setMappedThreshold mapped threshold} bytes is read from memory mapped
+     *     windows of a channel, instead of reading it to user space buffers. If data archive is not compressed,
+     *     such content is transferred directly, and digest is updated from mapped windows.
+     * <p>
+     *     If data archive is compressed with gzip by a single thread, and {@link #setSparseData sparse data}
+     *     is set, runs of zeros, e.g. holes of sparse files, are written without deflating them. Holes are
+     *     still stored as zeros, since dpkg does not support sparse tar entries
+     * @param archive data archive, with an entry put
+     * @param source channel to read content from
+     * @param size number of bytes to write, starting from a current channel position
+     * @param digest digest to update with content, may be null
+     * @throws IOException if unable to read or write content
+     */
+    public void transferEntry(
+            TarArchiveOutputStream archive, FileChannel source, long size, MessageDigest digest
+    ) throws IOException {
+        if (archive == _dataArchive && _dataStream != null && (digest == null || size >= _mappedThreshold)) {
+            long position = source.position();
+            _dataStream.transferFrom(source, size);
+            if (digest != null)
+                digest(source, position, size, digest);
+            // Keep archive entry accounting consistent, content written to an archive is skipped by a data stream
+            _dataStream.skip(size);
+            writeSkipped(archive, size);
+            return;
+        }
+        boolean gzip = archive == _dataArchive && _dataGzip != null, zeroRuns = gzip && _sparseData;
+        if (gzip && _adaptiveGain > 0 && size >= MIN_SAMPLED_SIZE) {
+            // level is switched only when it changes, since every switch terminates a deflate block
+            int level = isCompressible(source, size) ? gzipLevel() : Deflater.NO_COMPRESSION;
+            if (level != _dataLevel)
+                _dataGzip.setLevel(_dataLevel = level);
+        }
+        copyEntry(archive, source, size, digest, zeroRuns);
+    }
+
+    private boolean isCompressible(FileChannel source, long size) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, size));
+        for (long position = source.position(); sample.hasRemaining(); ) {
+            int read = source.read(sample, position + sample.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of entry content");
+        }
+        if (_sampler == null)
+            _sampler = new Deflater(Deflater.BEST_SPEED, true);
+        _sampler.reset();
+        _sampler.setInput(sample.array(), 0, sample.limit());
+        _sampler.finish();
+        byte[] buffer = new byte[0x4000];
+        while (!_sampler.finished())
+            _sampler.deflate(buffer);
+        _sampledEntries++;
+        _sampledSize += size;
+        long gain = 100 - _sampler.getBytesWritten() * 100 / sample.limit();
+        if (gain >= _adaptiveGain)
+            return true;
+        _storedEntries++;
+        _storedSize += size;
+        return false;
+    }
+
+    private void copyEntry(
+            TarArchiveOutputStream archive, FileChannel source, long size, MessageDigest digest, boolean zeroRuns
+    ) throws IOException {
+        long position = source.position();
+        boolean mapped = size >= _mappedThreshold;
+        if (_pipelined && size >= MIN_PREFETCHED_SIZE) {
+            try (InputStream is = new PrefetchInputStream(prefetcher(), source, position, size, mapped)) {
+                copyContent(archive, is, null, position, size, digest, zeroRuns);
+            }
+        } else {
+            InputStream is = mapped ? null : Channels.newInputStream(source);
+            copyContent(archive, is, source, position, size, digest, zeroRuns);
+        }
+        source.position(position + size);
+    }
+
+    private ExecutorService prefetcher() {
+        if (_prefetcher == null)
+            _prefetcher = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "deb-reader");
+                t.setDaemon(true);
+                return t;
+            });
+        return _prefetcher;
+    }
+
+    /**
+     * Copy entry content, read either from a stream, or from memory mapped windows of a channel
+     */
+    private void copyContent(
+            TarArchiveOutputStream archive, InputStream is, FileChannel source,
+            long position, long size, MessageDigest digest, boolean zeroRuns
+    ) throws IOException {
+        byte[] buffer = new byte[zeroRuns ? ZERO_CHUNK_SIZE : 0x10000];
+        long zeros = 0;
+        try (MappedRegion region = is == null ? new MappedRegion(source, position, size) : null) {
+            for (long end = position + size; position < end; ) {
+                int chunk = (int) Math.min(buffer.length, end - position);
+                if (is != null) {
+                    for (int read = 0; read < chunk; ) {
+                        int r = is.read(buffer, read, chunk - read);
+                        if (r < 0)
+                            throw new IOException("Unexpected end of entry content");
+                        read += r;
+                    }
+                } else {
+                    ByteBuffer window = region.window();
+                    chunk = Math.min(chunk, window.remaining());
+                    window.get(buffer, 0, chunk);
+                }
+                position += chunk;
+                if (digest != null)
+                    digest.update(buffer, 0, chunk);
+                // entry content starts at a record boundary, so every full chunk ends at a record boundary too,
+                // when every written record is already passed to a compressor
+                if (zeroRuns && chunk == buffer.length && isZero(buffer, chunk)) {
+                    zeros += chunk;
+                    continue;
+                }
+                writeZeros(archive, zeros);
+                zeros = 0;
+                archive.write(buffer, 0, chunk);
+            }
+        }
+        writeZeros(archive, zeros);
+    }
+
+    private void writeZeros(TarArchiveOutputStream archive, long count) throws IOException {
+        if (count == 0)
+            return;
+        _dataGzip.writeZeros(count);
+        // Keep archive entry accounting consistent, zeros written to an archive are skipped by a gzip stream
+        writeSkipped(archive, count);
+    }
+
+    private static void writeSkipped(TarArchiveOutputStream archive, long size) throws IOException {
+        while (size > 0) {
+            int chunk = (int) Math.min(SKIPPED_CONTENT.length, size);
+            archive.write(SKIPPED_CONTENT, 0, chunk);
+            size -= chunk;
+        }
+    }
+
+    private static boolean isZero(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++)
+            if (buffer[i] != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Update a digest with a content of a channel, reading it from memory mapped windows,
+     * one window at a time
+     * @param source channel to read
+     * @param position position of a content in a channel
+     * @param size size of a content
+     * @param digest digest to update
+     * @throws IOException if unable to map a channel
+     */
+    public static void digest(FileChannel source, long position, long size, MessageDigest digest) throws IOException {
+        try (MappedRegion region = new MappedRegion(source, position, size)) {
+            for (ByteBuffer window = region.window(); window != null; window = region.window())
+                digest.update(window);
+        }
+    }
+
+    /**
+     * Open data archive before a control one. Compressed data is written to a spool file, and
+     * is copied to a deb file after control archive is closed, when this writer is closed.
+     * <p>
+     *     This allows to compute control content (e.g. md5sums) while writing data.
+     *     Spool file is deleted when this writer is closed, unless this method fails before it is open,
+     *     in which case a caller deletes it
+     * @param spool file to store compressed data archive to
+     * @return data archive stream
+     * @throws IOException if control or data stream was previously open
+     */
+    public TarArchiveOutputStream spoolData(File spool) throws IOException {
+        if (_stage != BEFORE_CONTROL_STAGE)
+            throw new IOException("Unable to spool data after control stream was open");
+        if (_spool != null)
+            throw new IOException("Data stream was previously spooled");
+        OutputStream os = new FileOutputStream(spool) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                _spoolComplete = true;
+            }
+        };
+        _spool = spool;
+        try {
+            return createDataArchive(os);
+        } catch (IOException | RuntimeException e) {
+            try {
+                os.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private OutputStream compressControl(OutputStream os) throws IOException {
+        switch (_compression) {
+            case gzip:
+                return new GZIPOutputStream(os);
+            case xz:
+                return new XZOutputStream(os, new LZMA2Options(), XZ.CHECK_CRC64);
+            case zstd:
+                return new ZstdOutputStream(os);
+            default:
+                return os;
+        }
+    }
+
+    private OutputStream compressData(OutputStream os) throws IOException {
+        switch (_compression) {
+            case gzip:
+                int level = gzipLevel();
+                if (_compressionThreads > 1)
+                    return new ParallelGzipOutputStream(os, _compressionThreads, _compressionBlockSize, level);
+                return new GZIPOutputStream(os) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case xz:
+                LZMA2Options options = createXzOptions();
+                if (_compressionThreads > 1) {
+                    int blockSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(
+                            (long) _compressionBlockSize, 3L * options.getDictSize()
+                    ));
+                    return new ParallelXzOutputStream(os, _compressionThreads, blockSize, options);
+                }
+                return new XZOutputStream(os, options, XZ.CHECK_CRC64);
+            case zstd:
+                ZstdOutputStream zstd = new ZstdOutputStream(os);
+                if (_compressionLevel != null)
+                    zstd.setLevel(_compressionLevel);
+                if (_compressionDictionarySize > 0)
+                    zstd.setLong(Math.max(10, 32 - Integer.numberOfLeadingZeros(_compressionDictionarySize - 1)));
+                if (_compressionThreads > 1)
+                    zstd.setWorkers(_compressionThreads);
+                return zstd;
+            default:
+                return os;
+        }
+    }
+
+    private int gzipLevel() {
+        return _compressionLevel == null ? Deflater.DEFAULT_COMPRESSION : _compressionLevel;
+    }
+
+    private LZMA2Options createXzOptions() throws UnsupportedOptionsException {
+        LZMA2Options options = new LZMA2Options(
+                _compressionLevel == null ? LZMA2Options.PRESET_DEFAULT : _compressionLevel
         );
-        data.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-        return data;
+        if (_compressionDictionarySize > 0)
+            options.setDictSize(_compressionDictionarySize);
+        return options;
+    }
+
+    private TarArchiveOutputStream createTarArchive(OutputStream os) throws IOException {
+        TarArchiveOutputStream archive = new TarArchiveOutputStream(os, StandardCharsets.UTF_8.name());
+        archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        archive.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+        return archive;
+    }
+
+    private TarArchiveOutputStream createRecordArchive(OutputStream os) {
+        TarArchiveOutputStream archive = new TarArchiveOutputStream(os, TAR_RECORD_SIZE, StandardCharsets.UTF_8.name());
+        archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        archive.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+        return archive;
+    }
+
+    private void writeSpooledData() throws IOException {
+        if (!_spoolComplete)
+            throw new IOException("Spooled data stream was not closed");
+        try (FileChannel spool = FileChannel.open(_spool.toPath(), StandardOpenOption.READ);
+             DebOutputStream os = new DebOutputStream("data", DATA_ARCHIVE + _compression.getExtension(), spool.size())) {
+            os.transferFrom(spool, spool.size());
+        }
+    }
+
+    private long position() throws IOException {
+        return _channel.position() + _buffer.position();
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (!_buffer.hasRemaining())
+            flushBuffer();
+        _buffer.put((byte) b);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (len > _buffer.remaining()) {
+            flushBuffer();
+            if (len >= _buffer.capacity()) {
+                ByteBuffer wrapped = ByteBuffer.wrap(b, off, len);
+                while (wrapped.hasRemaining())
+                    _out.write(wrapped);
+                return;
+            }
+        }
+        _buffer.put(b, off, len);
+    }
+
+    private void flushBuffer() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining())
+            _out.write(_buffer);
+        _buffer.clear();
     }
 
     @Override
@@ -64,41 +740,95 @@ public class DebFileWriter implements AutoCloseable {
         try {
             if (_stage > FILENAME_LENGTH)
                 return;
+            if (_spool != null && _stage == BEFORE_DATA_SAGE)
+                writeSpooledData();
             if (_stage < FINAL_STAGE)
                 throw new IOException("Deb file is incomplete");
             _stage++;
         } finally {
-            _randomAccessFile.close();
+            try {
+                try {
+                    flushBuffer();
+                } finally {
+                    _out.close();
+                }
+            } finally {
+                if (_sampler != null)
+                    _sampler.end();
+                if (_prefetcher != null)
+                    _prefetcher.shutdown();
+                if (_openSpool != null)
+                    _openSpool.close();
+                if (_spool != null)
+                    Files.deleteIfExists(_spool.toPath());
+            }
         }
     }
 
+    /**
+     * Stream of an ar member content. Member size is either patched in a header, when a member is closed,
+     * or is known beforehand, or a member is spooled until it is closed, when a sink is not seekable
+     */
     private class DebOutputStream extends OutputStream {
         private final long _startOffset;
         private final int _activeState;
-        private final String _name;
+        private final String _name, _fileName;
+        private final long _expectedSize;
+        private final MemberSpool _memberSpool;
+        private long _skip;
+        private long _size;
 
         public DebOutputStream(String name, String fileName) throws IOException {
+            this(name, fileName, -1);
+        }
+
+        /**
+         * @param name name of a member, used in error messages
+         * @param fileName file name of a member
+         * @param size size of a member content, or -1 if unknown
+         * @throws IOException if unable to write a header
+         */
+        public DebOutputStream(String name, String fileName, long size) throws IOException {
             _activeState = ++_stage;
-            _startOffset = _randomAccessFile.getFilePointer();
-            ByteArrayOutputStream buffer = createHeader(fileName);
-            buffer.writeTo(this);
             _name = name;
+            _fileName = fileName;
+            _expectedSize = size;
+            if (size < 0 && _channel == null) {
+                _startOffset = -1;
+                _memberSpool = _openSpool = new MemberSpool(_spoolDirectory, MEMBER_MEMORY_LIMIT);
+                return;
+            }
+            _startOffset = _channel == null ? -1 : position();
+            _memberSpool = null;
+            if (size > MAX_MEMBER_SIZE)
+                throw new IOException(
+                        "Content of " + name + " exceeds " + MAX_MEMBER_SIZE + " bytes, allowed by ar format"
+                );
+            byte[] header = createHeader(fileName, size).toByteArray();
+            writeBytes(header, 0, header.length);
         }
 
-        private ByteArrayOutputStream createHeader(String fileName) throws IOException {
+        private ByteArrayOutputStream createHeader(String fileName, long size) throws IOException {
             ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_LENGTH);
             try(Writer w = new OutputStreamWriter(buffer, CHARSET)) {
                 w.write(fileName);
                 for (int i = fileName.length(); i < FILENAME_LENGTH; i++)
                     w.write(' ');
-                String modTime = Long.toString(Instant.now().getEpochSecond());
+                String modTime = Long.toString(_modificationTime.getEpochSecond());
                 w.write(modTime);
                 for (int i = modTime.length(); i < MOD_TIME_LENGTH; i++)
                     w.write(' ');
                 w.write(OWNER_ID);
                 w.write(GROUP_ID);
                 w.write(FILE_MODE);
-                w.write(SIZE_PLACEHOLDER);
+                if (size < 0) {
+                    w.write(SIZE_PLACEHOLDER);
+                } else {
+                    String sizeField = Long.toString(size);
+                    w.write(sizeField);
+                    for (int i = sizeField.length(); i < SIZE_PLACEHOLDER.length(); i++)
+                        w.write(' ');
+                }
             }
             buffer.write(0x60);
             buffer.write(0x0A);
@@ -110,39 +840,111 @@ public class DebFileWriter implements AutoCloseable {
                 throw new IOException("Unable to write to " + _name + ", since it was previously closed");
         }
 
+        private void checkSize(long count) throws IOException {
+            _size += count;
+            if (_size > MAX_MEMBER_SIZE)
+                throw new IOException(
+                        "Content of " + _name + " exceeds " + MAX_MEMBER_SIZE + " bytes, allowed by ar format"
+                );
+        }
+
         @Override
         public void write(int b) throws IOException {
             checkStage();
-            _randomAccessFile.write(b);
+            if (_skip > 0) {
+                _skip--;
+            } else {
+                checkSize(1);
+                if (_memberSpool != null)
+                    _memberSpool.write(b);
+                else
+                    writeByte(b);
+            }
         }
 
         @Override
         public void write(byte[] b) throws IOException {
-            checkStage();
-            _randomAccessFile.write(b);
+            write(b, 0, b.length);
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             checkStage();
-            _randomAccessFile.write(b, off, len);
+            if (_skip > 0) {
+                int skipped = (int) Math.min(_skip, len);
+                _skip -= skipped;
+                off += skipped;
+                len -= skipped;
+            }
+            checkSize(len);
+            if (_memberSpool != null)
+                _memberSpool.write(b, off, len);
+            else
+                writeBytes(b, off, len);
+        }
+
+        /**
+         * Skip next bytes written to this stream
+         * @param count number of bytes to skip
+         */
+        void skip(long count) {
+            _skip += count;
+        }
+
+        /**
+         * Copy content of a source channel, letting file system copy it without user space buffers
+         * @param source channel to copy from its current position
+         * @param count number of bytes to copy
+         * @throws IOException if unable to copy
+         */
+        void transferFrom(FileChannel source, long count) throws IOException {
+            checkStage();
+            checkSize(count);
+            long position = source.position();
+            if (_memberSpool != null) {
+                _memberSpool.transferFrom(source, position, count);
+                source.position(position + count);
+                return;
+            }
+            flushBuffer();
+            while (count > 0) {
+                long transferred = source.transferTo(position, count, _out);
+                if (transferred <= 0)
+                    throw new IOException("Unable to copy content to " + _name);
+                position += transferred;
+                count -= transferred;
+            }
+            source.position(position);
         }
 
         @Override
         public void close() throws IOException {
             if (_stage != _activeState)
                 return;
-            long offset = _randomAccessFile.getFilePointer();
-            long size = offset - _startOffset - HEADER_LENGTH;
-            if (size % 2 != 0) {
-                write(0x0A); // Pad to even size;
-                offset = _randomAccessFile.getFilePointer();
-            }
-            _randomAccessFile.seek(_startOffset + SIZE_OFFSET);
-            if (size >= 10_000_000_000L) // 10 Gigabytes
-                throw new IOException("Content size too large: " + size);
-            _randomAccessFile.write(Long.toString(size).getBytes(CHARSET));
-            _randomAccessFile.seek(offset);
+            if (_memberSpool != null) {
+                try {
+                    byte[] header = createHeader(_fileName, _size).toByteArray();
+                    writeBytes(header, 0, header.length);
+                    flushBuffer();
+                    _memberSpool.writeTo(_out);
+                } finally {
+                    _memberSpool.close();
+                    _openSpool = null;
+                }
+            } else if (_expectedSize >= 0 && _size != _expectedSize) {
+                throw new IOException("Content size of " + _name + " is " + _size + " instead of " + _expectedSize);
+            }
+            if (_size > MAX_MEMBER_SIZE)
+                throw new IOException("Content size too large: " + _size);
+            if (_size % 2 != 0)
+                writeByte(0x0A); // Pad to even size, padding is not a part of content
+            flushBuffer();
+            if (_memberSpool == null && _expectedSize < 0) {
+                ByteBuffer sizeField = ByteBuffer.wrap(Long.toString(_size).getBytes(CHARSET));
+                long sizeOffset = _startOffset + SIZE_OFFSET;
+                while (sizeField.hasRemaining())
+                    sizeOffset += _channel.write(sizeField, sizeOffset);
+            }
             _stage++;
         }
     }
@@ -0,0 +1,333 @@
+package io.solit.deb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Gzip output stream, writing content as a sequence of gzip members, which forms a valid gzip stream.
+ * <p>
+ *     Content between segment boundaries is compressed as a separate member, so compressed segments
+ *     may be recorded and later spliced into another stream instead of compressing the same content again.
+ * <p>
+ *     Runs of zeros, e.g. holes of sparse files, may be written without deflating them, see {@link #writeZeros}
+ * @author yaga
+ * @since 16.10.26
+ */
+public class GzipSegmentOutputStream extends OutputStream {
+    private static final int ZERO_RUN_LENGTH = 1024 * 1024;
+    private static final byte[] ZEROS = new byte[ParallelGzipOutputStream.DICTIONARY_SIZE];
+    private final OutputStream _out;
+    private final int _level;
+    private final Deflater _deflater;
+    private final CRC32 _crc = new CRC32();
+    private final byte[] _buffer = new byte[0x4000];
+    private final byte[] _input = new byte[0x10000];
+    private int _inputLength;
+    private byte[] _zeroRun;
+    private OutputStream _recorder;
+    private long _memberLength, _skip;
+    private boolean _memberOpen, _memberWritten, _skipping, _closed;
+
+    public GzipSegmentOutputStream(OutputStream out, int level) {
+        _out = Objects.requireNonNull(out, "Output stream should not be null");
+        _level = level;
+        _deflater = new Deflater(level, true);
+    }
+
+    private void checkClosed() throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        _out.write(b, off, len);
+        if (_recorder != null)
+            _recorder.write(b, off, len);
+    }
+
+    private void startMember() throws IOException {
+        emit(ParallelGzipOutputStream.HEADER, 0, ParallelGzipOutputStream.HEADER.length);
+        _deflater.reset();
+        _crc.reset();
+        _memberLength = 0;
+        _memberOpen = true;
+    }
+
+    private void deflateInput() throws IOException {
+        if (_inputLength == 0)
+            return;
+        if (!_memberOpen)
+            startMember();
+        _crc.update(_input, 0, _inputLength);
+        _memberLength += _inputLength;
+        _deflater.setInput(_input, 0, _inputLength);
+        while (!_deflater.needsInput())
+            emit(_buffer, 0, _deflater.deflate(_buffer));
+        _inputLength = 0;
+    }
+
+    private void finishMember() throws IOException {
+        deflateInput();
+        if (!_memberOpen)
+            return;
+        _deflater.finish();
+        while (!_deflater.finished())
+            emit(_buffer, 0, _deflater.deflate(_buffer));
+        long crc = _crc.getValue();
+        byte[] trailer = {
+                (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                (byte) _memberLength, (byte) (_memberLength >> 8), (byte) (_memberLength >> 16), (byte) (_memberLength >> 24)
+        };
+        emit(trailer, 0, trailer.length);
+        _memberOpen = false;
+        _memberWritten = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (_skipping || len == 0)
+            return;
+        if (_skip > 0) {
+            int skipped = (int) Math.min(_skip, len);
+            _skip -= skipped;
+            off += skipped;
+            len -= skipped;
+        }
+        while (len > 0) {
+            int chunk = Math.min(len, _input.length - _inputLength);
+            System.arraycopy(b, off, _input, _inputLength, chunk);
+            _inputLength += chunk;
+            off += chunk;
+            len -= chunk;
+            if (_inputLength == _input.length)
+                deflateInput();
+        }
+    }
+
+    /**
+     * Set compression level of content written next, e.g. to store incompressible content without compression
+     * @param level compression level
+     * @throws IOException if unable to deflate previously written content
+     */
+    public void setLevel(int level) throws IOException {
+        checkClosed();
+        deflateInput();
+        _deflater.setLevel(level);
+    }
+
+    /**
+     * Write a run of zeros, without deflating it, and skip the same number of bytes written next.
+     * This allows to write zeros through a stream, that wraps this one, e.g. a tar archive, at a low cost
+     * @param count number of zeros
+     * @throws IOException if unable to write compressed zeros
+     */
+    public void writeZeros(long count) throws IOException {
+        checkClosed();
+        if (_skipping || count <= 0)
+            return;
+        deflateInput();
+        if (!_memberOpen)
+            startMember();
+        // align deflated content to a byte boundary, so independently deflated blocks may follow
+        int written;
+        do {
+            written = _deflater.deflate(_buffer, 0, _buffer.length, Deflater.SYNC_FLUSH);
+            emit(_buffer, 0, written);
+        } while (written == _buffer.length);
+        if (_zeroRun == null)
+            _zeroRun = deflateZeros(_level, ZERO_RUN_LENGTH);
+        for (long runs = count / ZERO_RUN_LENGTH; runs > 0; runs--)
+            emit(_zeroRun, 0, _zeroRun.length);
+        int rest = (int) (count % ZERO_RUN_LENGTH);
+        if (rest > 0) {
+            byte[] zeros = deflateZeros(_level, rest);
+            emit(zeros, 0, zeros.length);
+        }
+        for (long left = count; left > 0; left -= ZEROS.length)
+            _crc.update(ZEROS, 0, (int) Math.min(ZEROS.length, left));
+        _memberLength += count;
+        _skip += count;
+        // following content may refer to preceding zeros only
+        _deflater.reset();
+        _deflater.setDictionary(ZEROS, 0, (int) Math.min(ZEROS.length, count));
+    }
+
+    private static byte[] deflateZeros(int level, int count) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(count / 256 + 64);
+            byte[] buffer = new byte[0x4000];
+            for (int left = count; left > 0; left -= ZEROS.length) {
+                deflater.setInput(ZEROS, 0, Math.min(ZEROS.length, left));
+                while (!deflater.needsInput())
+                    result.write(buffer, 0, deflater.deflate(buffer));
+            }
+            int written;
+            do {
+                written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                result.write(buffer, 0, written);
+            } while (written == buffer.length);
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Start a new segment, compressed as a separate gzip member
+     * @param recorder stream to copy compressed segment to, may be null
+     * @throws IOException if unable to finish previous member
+     */
+    public void startSegment(OutputStream recorder) throws IOException {
+        checkClosed();
+        finishMember();
+        _recorder = recorder;
+        _skipping = false;
+    }
+
+    /**
+     * Write a previously recorded compressed segment, and skip content written until the segment end
+     * @param segment channel of a file, containing compressed segment, which is read from its start
+     * @throws IOException if unable to copy a segment
+     */
+    public void spliceSegment(FileChannel segment) throws IOException {
+        checkClosed();
+        finishMember();
+        _recorder = null;
+        long size = segment.size();
+        ByteBuffer buffer = ByteBuffer.wrap(_buffer);
+        for (long position = 0; position < size; position += buffer.position()) {
+            buffer.clear();
+            if (segment.read(buffer, position) < 0)
+                throw new EOFException("Segment is truncated");
+            _out.write(_buffer, 0, buffer.position());
+            _memberWritten = true;
+        }
+        _skipping = true;
+    }
+
+    /**
+     * Check a recorded segment by inflating its members and verifying their checksums and lengths,
+     * so a damaged segment is not spliced
+     * @param segment channel of a file, containing compressed segment, which is read from its start
+     * @return length of a segment content
+     * @throws ZipException if a segment is malformed or truncated
+     * @throws IOException if unable to read a segment
+     */
+    public static long checkSegment(FileChannel segment) throws IOException {
+        byte[] header = new byte[ParallelGzipOutputStream.HEADER.length], trailer = new byte[8];
+        byte[] input = new byte[0x4000], output = new byte[0x10000];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        long total = 0;
+        segment.position(0);
+        // channel is not closed with a stream, it is owned by a caller
+        PushbackInputStream is = new PushbackInputStream(
+                new BufferedInputStream(Channels.newInputStream(segment)), input.length
+        );
+        try {
+            for (int first = is.read(); first >= 0; first = is.read()) {
+                header[0] = (byte) first;
+                readFully(is, header, 1);
+                if (!Arrays.equals(header, ParallelGzipOutputStream.HEADER))
+                    throw new ZipException("Not a segment member header");
+                inflater.reset();
+                crc.reset();
+                long length = 0;
+                int read = 0;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        read = is.read(input);
+                        if (read < 0)
+                            throw new ZipException("Segment is truncated");
+                        inflater.setInput(input, 0, read);
+                    }
+                    int inflated = inflater.inflate(output);
+                    if (inflated == 0 && inflater.needsDictionary())
+                        throw new ZipException("Segment requires a dictionary");
+                    crc.update(output, 0, inflated);
+                    length += inflated;
+                }
+                // input, following a deflated content, belongs to a trailer and a next member
+                int remaining = inflater.getRemaining();
+                if (remaining > 0)
+                    is.unread(input, read - remaining, remaining);
+                readFully(is, trailer, 0);
+                if (readInt(trailer, 0) != (int) crc.getValue() || readInt(trailer, 4) != (int) length)
+                    throw new ZipException("Segment checksum or length mismatch");
+                total += length;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Segment is malformed: " + e.getMessage());
+        } finally {
+            inflater.end();
+            segment.position(0);
+        }
+        return total;
+    }
+
+    private static void readFully(InputStream is, byte[] b, int off) throws IOException {
+        for (int read; off < b.length; off += read)
+            if ((read = is.read(b, off, b.length - off)) < 0)
+                throw new ZipException("Segment is truncated");
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * End current segment. Content written after it is compressed as a separate member
+     * @throws IOException if unable to finish a member
+     */
+    public void endSegment() throws IOException {
+        checkClosed();
+        finishMember();
+        _recorder = null;
+        _skipping = false;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed)
+            return;
+        try {
+            _recorder = null;
+            deflateInput();
+            if (!_memberWritten && !_memberOpen)
+                startMember(); // gzip stream should contain at least one member
+            finishMember();
+            _closed = true;
+        } finally {
+            _deflater.end();
+            _out.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.solit.deb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader of a channel region through memory mapped windows.
+ * <p>
+ *     Only one window is referenced at a time: a previous window is released before a next one is mapped,
+ *     and a last one is released when a region is closed. Released windows are unmapped by a garbage
+ *     collector, rather than explicitly, so a window, which is still referenced by mistake, stays readable
+ * @author yaga
+ * @since 16.10.26
+ */
+class MappedRegion implements Closeable {
+    static final long WINDOW_SIZE = 64 * 1024 * 1024;
+    private final FileChannel _source;
+    private final long _windowSize;
+    private final long _end;
+    private long _position;
+    private ByteBuffer _window;
+
+    /**
+     * @param source channel to read
+     * @param position position of a region in a channel
+     * @param size size of a region
+     */
+    MappedRegion(FileChannel source, long position, long size) {
+        this(source, position, size, WINDOW_SIZE);
+    }
+
+    MappedRegion(FileChannel source, long position, long size, long windowSize) {
+        _source = source;
+        _position = position;
+        _end = position + size;
+        _windowSize = windowSize;
+    }
+
+    /**
+     * Get a window with remaining region content, mapping a next one when a current window is read
+     * @return window with remaining content, or null at a region end
+     * @throws IOException if unable to map a channel
+     */
+    ByteBuffer window() throws IOException {
+        if (_window != null && _window.hasRemaining())
+            return _window;
+        _window = null;
+        if (_position >= _end)
+            return null;
+        _window = _source.map(FileChannel.MapMode.READ_ONLY, _position, Math.min(_windowSize, _end - _position));
+        _position += _window.remaining();
+        return _window;
+    }
+
+    @Override
+    public void close() {
+        _window = null;
+    }
+}
@@ -0,0 +1,136 @@
+package io.solit.deb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Content of an ar member, which should be sized before it is written to a non-seekable sink.
+ * <p>
+ *     Content is kept in memory up to a limit, and is moved to a temporary file, deleted on close, after that.
+ *     In the latter case memory buffer is used to collect small writes.
+ * @author yaga
+ * @since 16.10.26
+ */
+class MemberSpool implements Closeable {
+    private static final int INITIAL_SIZE = 0x1000;
+    private final Path _directory;
+    private final int _memoryLimit;
+    private byte[] _memory;
+    private int _length;
+    private FileChannel _file;
+    private long _fileSize;
+
+    /**
+     * @param directory directory to create a temporary file in, or null for a default one
+     * @param memoryLimit maximum size of content kept in memory
+     */
+    MemberSpool(Path directory, int memoryLimit) {
+        _directory = directory;
+        _memoryLimit = Math.max(memoryLimit, INITIAL_SIZE);
+        _memory = new byte[INITIAL_SIZE];
+    }
+
+    void write(int b) throws IOException {
+        if (_length == _memory.length)
+            makeRoom();
+        _memory[_length++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (_length == _memory.length)
+                makeRoom();
+            int chunk = Math.min(len, _memory.length - _length);
+            System.arraycopy(b, off, _memory, _length, chunk);
+            _length += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        if (_memory.length < _memoryLimit) {
+            byte[] memory = new byte[(int) Math.min((long) _memory.length * 2, _memoryLimit)];
+            System.arraycopy(_memory, 0, memory, 0, _length);
+            _memory = memory;
+        } else {
+            flushMemory();
+        }
+    }
+
+    private void flushMemory() throws IOException {
+        if (_file == null) {
+            Path file = _directory == null
+                    ? Files.createTempFile("deb-", ".member")
+                    : Files.createTempFile(_directory, "deb-", ".member");
+            try {
+                _file = FileChannel.open(
+                        file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE
+                );
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(_memory, 0, _length);
+        while (buffer.hasRemaining())
+            _fileSize += _file.write(buffer, _fileSize);
+        _length = 0;
+    }
+
+    /**
+     * Append content of a source channel, letting file system copy it without user space buffers
+     * @param source channel to copy from
+     * @param position position of content in a source channel
+     * @param count number of bytes to copy
+     * @throws IOException if unable to copy
+     */
+    void transferFrom(FileChannel source, long position, long count) throws IOException {
+        flushMemory();
+        for (long end = position + count; position < end; ) {
+            long transferred = _file.transferFrom(source.position(position), _fileSize, end - position);
+            if (transferred <= 0)
+                throw new IOException("Unable to spool member content");
+            position += transferred;
+            _fileSize += transferred;
+        }
+    }
+
+    long size() {
+        return _fileSize + _length;
+    }
+
+    /**
+     * Write spooled content to a sink
+     * @param out sink to write to
+     * @throws IOException if unable to write content
+     */
+    void writeTo(WritableByteChannel out) throws IOException {
+        if (_file != null) {
+            flushMemory();
+            for (long position = 0; position < _fileSize; ) {
+                long transferred = _file.transferTo(position, _fileSize - position, out);
+                if (transferred <= 0)
+                    throw new IOException("Unable to write spooled member content");
+                position += transferred;
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(_memory, 0, _length);
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        _memory = null;
+        if (_file != null)
+            _file.close();
+    }
+}
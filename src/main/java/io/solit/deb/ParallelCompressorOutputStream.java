@@ -0,0 +1,176 @@
+package io.solit.deb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Output stream, compressing content in fixed size blocks on several threads.
+ * <p>
+ *     Content is split into blocks, each block is compressed by a separate task, and compressed
+ *     blocks are written to an underlying stream in order. Number of blocks compressed simultaneously
+ *     is limited, so memory usage does not depend on the size of compressed content.
+ * @author yaga
+ * @since 16.10.26
+ */
+public abstract class ParallelCompressorOutputStream extends OutputStream {
+    private final OutputStream _out;
+    private final ExecutorService _executor;
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<>();
+    private final int _maxPending;
+    private byte[] _block, _previous;
+    private int _blockLength;
+    private boolean _closed;
+
+    /**
+     * @param out underlying stream, header should be written by a subclass constructor
+     * @param threads number of compressing threads
+     * @param blockSize size of a block
+     * @param maxPending maximum number of blocks, submitted for compression and not yet written
+     */
+    protected ParallelCompressorOutputStream(OutputStream out, int threads, int blockSize, int maxPending) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of compression threads should be positive: " + threads);
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Compression block size should be positive: " + blockSize);
+        _out = Objects.requireNonNull(out, "Output stream should not be null");
+        _block = new byte[blockSize];
+        _maxPending = Math.max(maxPending, 1);
+        AtomicInteger counter = new AtomicInteger();
+        _executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "deb-compressor-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Compress a block. Called on a compressing thread
+     * @param block block content, should not be modified
+     * @param length length of block content
+     * @param previous previous block, or null if this block is the first one
+     * @param last whether this block is the last one, last block may be empty
+     * @return compressed block
+     * @throws IOException if compression failed
+     */
+    protected abstract byte[] compress(byte[] block, int length, byte[] previous, boolean last) throws IOException;
+
+    /**
+     * Invoked on a writing thread, when a block is submitted for compression, in block order
+     * @param block block content, should not be modified
+     * @param length length of block content
+     */
+    protected void blockSubmitted(byte[] block, int length) {}
+
+    /**
+     * Write compressed block to an underlying stream. Invoked on a writing thread in block order
+     * @param out underlying stream
+     * @param compressed compressed block
+     * @throws IOException if unable to write a block
+     */
+    protected void writeBlock(OutputStream out, byte[] compressed) throws IOException {
+        out.write(compressed);
+    }
+
+    /**
+     * Write trailer to an underlying stream, after all blocks are written
+     * @param out underlying stream
+     * @throws IOException if unable to write a trailer
+     */
+    protected abstract void writeTrailer(OutputStream out) throws IOException;
+
+    /**
+     * Release compressing threads after a subclass constructor failed to write a header
+     */
+    protected void abort() {
+        _closed = true;
+        _executor.shutdownNow();
+    }
+
+    private void checkClosed() throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        _block[_blockLength++] = (byte) b;
+        if (_blockLength == _block.length)
+            submitBlock(false);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            int chunk = Math.min(len, _block.length - _blockLength);
+            System.arraycopy(b, off, _block, _blockLength, chunk);
+            _blockLength += chunk;
+            off += chunk;
+            len -= chunk;
+            if (_blockLength == _block.length)
+                submitBlock(false);
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] block = _block, previous = _previous;
+        int length = _blockLength;
+        blockSubmitted(block, length);
+        _pending.add(_executor.submit(() -> compress(block, length, previous, last)));
+        if (!last) {
+            _previous = block;
+            _block = new byte[block.length];
+            _blockLength = 0;
+        }
+        while (_pending.size() >= _maxPending)
+            writePending();
+    }
+
+    private void writePending() throws IOException {
+        Future<byte[]> future = _pending.poll();
+        try {
+            writeBlock(_out, future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress block", e.getCause());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        while (!_pending.isEmpty())
+            writePending();
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed)
+            return;
+        _closed = true;
+        try {
+            submitBlock(true);
+            while (!_pending.isEmpty())
+                writePending();
+            writeTrailer(_out);
+        } finally {
+            _executor.shutdownNow();
+            _out.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.solit.deb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream, compressing content in fixed size blocks on several threads.
+ * <p>
+ *     Every block except the last one is deflated independently and terminated with a sync flush,
+ *     using last 32 kilobytes of a previous block as a preset dictionary. Compressed blocks are written
+ *     in order, forming a single valid gzip member, just like <code>pigz</code> does.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class ParallelGzipOutputStream extends ParallelCompressorOutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+    static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private final int _level;
+    private final CRC32 _crc = new CRC32();
+    private long _totalLength;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+        this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level) throws IOException {
+        super(out, threads, checkBlockSize(blockSize), threads * 2);
+        _level = level;
+        try {
+            out.write(HEADER);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private static int checkBlockSize(int blockSize) {
+        if (blockSize < DICTIONARY_SIZE)
+            throw new IllegalArgumentException("Compression block size should be at least " + DICTIONARY_SIZE + " bytes");
+        return blockSize;
+    }
+
+    @Override
+    protected void blockSubmitted(byte[] block, int length) {
+        _crc.update(block, 0, length);
+        _totalLength += length;
+    }
+
+    @Override
+    protected byte[] compress(byte[] block, int length, byte[] previous, boolean last) {
+        Deflater deflater = new Deflater(_level, true);
+        try {
+            if (previous != null)
+                deflater.setDictionary(previous, previous.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            deflater.setInput(block, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[0x4000];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished())
+                    result.write(buffer, 0, deflater.deflate(buffer));
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    protected void writeTrailer(OutputStream out) throws IOException {
+        long crc = _crc.getValue();
+        out.write(new byte[] {
+                (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                (byte) _totalLength, (byte) (_totalLength >> 8), (byte) (_totalLength >> 16), (byte) (_totalLength >> 24)
+        });
+    }
+}
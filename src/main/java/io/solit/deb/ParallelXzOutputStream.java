@@ -0,0 +1,135 @@
+package io.solit.deb;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Xz output stream, compressing content in independent blocks on several threads, like <code>xz -T</code> does.
+ * <p>
+ *     Every block is encoded as a separate xz stream, then its block is extracted and written to a single
+ *     resulting stream, while stream index is built from index records of encoded streams.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class ParallelXzOutputStream extends ParallelCompressorOutputStream {
+    private static final byte[] MAGIC = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final byte[] FOOTER_MAGIC = {'Y', 'Z'};
+    private static final int HEADER_LENGTH = 12, FOOTER_LENGTH = 12;
+    private static final byte[] FLAGS = {0, XZ.CHECK_CRC64};
+    private final LZMA2Options _options;
+    private final ByteArrayOutputStream _records = new ByteArrayOutputStream();
+    private long _recordCount;
+
+    /**
+     * @param out underlying stream
+     * @param threads number of compressing threads
+     * @param blockSize size of an independently compressed block, at least three times
+     *                  the dictionary size is recommended
+     * @param options compression options
+     * @throws IOException if unable to write stream header
+     */
+    public ParallelXzOutputStream(OutputStream out, int threads, int blockSize, LZMA2Options options) throws IOException {
+        super(out, threads, blockSize, threads + 1);
+        _options = Objects.requireNonNull(options, "Compression options should not be null");
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_LENGTH);
+            header.write(MAGIC);
+            header.write(FLAGS);
+            writeCrc32(header, FLAGS, 0, FLAGS.length);
+            header.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    @Override
+    protected byte[] compress(byte[] block, int length, byte[] previous, boolean last) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+        try (XZOutputStream xz = new XZOutputStream(result, _options, XZ.CHECK_CRC64)) {
+            xz.write(block, 0, length);
+        }
+        return result.toByteArray();
+    }
+
+    @Override
+    protected void writeBlock(OutputStream out, byte[] stream) throws IOException {
+        int footer = stream.length - FOOTER_LENGTH;
+        if (footer < HEADER_LENGTH || stream[stream.length - 2] != FOOTER_MAGIC[0] || stream[stream.length - 1] != FOOTER_MAGIC[1])
+            throw new IOException("Malformed xz block stream");
+        long backwardSize = (stream[footer + 4] & 0xffL) | (stream[footer + 5] & 0xffL) << 8 |
+                (stream[footer + 6] & 0xffL) << 16 | (stream[footer + 7] & 0xffL) << 24;
+        int index = footer - (int) ((backwardSize + 1) * 4);
+        if (index < HEADER_LENGTH || stream[index] != 0)
+            throw new IOException("Malformed xz block stream index");
+        int[] position = {index + 1};
+        long count = readVarInt(stream, position);
+        if (count == 0)
+            return; // empty last block
+        if (count != 1)
+            throw new IOException("Unexpected number of blocks in xz stream: " + count);
+        long unpaddedSize = readVarInt(stream, position), uncompressedSize = readVarInt(stream, position);
+        out.write(stream, HEADER_LENGTH, index - HEADER_LENGTH);
+        writeVarInt(_records, unpaddedSize);
+        writeVarInt(_records, uncompressedSize);
+        _recordCount++;
+    }
+
+    @Override
+    protected void writeTrailer(OutputStream out) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream(_records.size() + 16);
+        index.write(0);
+        writeVarInt(index, _recordCount);
+        _records.writeTo(index);
+        while (index.size() % 4 != 0)
+            index.write(0);
+        byte[] content = index.toByteArray();
+        index.reset();
+        index.write(content);
+        writeCrc32(index, content, 0, content.length);
+        long backwardSize = index.size() / 4 - 1;
+        byte[] footer = new byte[6];
+        for (int i = 0; i < 4; i++)
+            footer[i] = (byte) (backwardSize >> (8 * i));
+        System.arraycopy(FLAGS, 0, footer, 4, FLAGS.length);
+        writeCrc32(index, footer, 0, footer.length);
+        index.write(footer);
+        index.write(FOOTER_MAGIC);
+        index.writeTo(out);
+    }
+
+    private static void writeCrc32(OutputStream out, byte[] data, int offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        long value = crc.getValue();
+        out.write(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+
+    private static long readVarInt(byte[] data, int[] position) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (position[0] >= data.length)
+                throw new IOException("Malformed xz block stream index");
+            int b = data[position[0]++] & 0xff;
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("Malformed xz block stream index");
+    }
+
+    private static void writeVarInt(OutputStream out, long value) throws IOException {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,165 @@
+package io.solit.deb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream, writing content to an underlying stream on a separate thread.
+ * <p>
+ *     Content is collected into blocks, and full blocks are written in order by a writing thread, while
+ *     a caller fills the next ones. Number of blocks, submitted and not yet written, is limited,
+ *     so a caller blocks when an underlying stream falls behind. Failure of a writing thread is reported
+ *     by a next call to this stream; underlying stream is closed by a calling thread.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PipelinedOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    public static final int DEFAULT_BLOCKS = 4;
+    private final OutputStream _out;
+    private final ExecutorService _executor;
+    private final Deque<Future<byte[]>> _pending = new ArrayDeque<>();
+    private final int _maxPending;
+    private byte[] _block;
+    private int _blockLength;
+    private volatile boolean _failed;
+    private boolean _closed;
+
+    public PipelinedOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCKS);
+    }
+
+    /**
+     * @param out underlying stream
+     * @param blockSize size of a block
+     * @param maxPending maximum number of blocks, submitted for writing and not yet written
+     */
+    public PipelinedOutputStream(OutputStream out, int blockSize, int maxPending) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size should be positive: " + blockSize);
+        _out = Objects.requireNonNull(out, "Output stream should not be null");
+        _block = new byte[blockSize];
+        _maxPending = Math.max(maxPending, 1);
+        _executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "deb-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void checkClosed() throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        _block[_blockLength++] = (byte) b;
+        if (_blockLength == _block.length)
+            submitBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            int chunk = Math.min(len, _block.length - _blockLength);
+            System.arraycopy(b, off, _block, _blockLength, chunk);
+            _blockLength += chunk;
+            off += chunk;
+            len -= chunk;
+            if (_blockLength == _block.length)
+                submitBlock();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] block = _block;
+        int length = _blockLength;
+        _pending.add(_executor.submit(() -> {
+            // blocks, submitted after a failed one, are dropped, since their content would not be contiguous
+            if (_failed)
+                return null;
+            try {
+                _out.write(block, 0, length);
+            } catch (IOException | RuntimeException e) {
+                _failed = true;
+                throw e;
+            }
+            return block;
+        }));
+        _block = null;
+        _blockLength = 0;
+        while (_pending.size() >= _maxPending)
+            _block = writePending();
+        if (_block == null)
+            _block = new byte[block.length];
+    }
+
+    private byte[] writePending() throws IOException {
+        Future<byte[]> future = _pending.poll();
+        try {
+            byte[] block = future.get();
+            if (block == null)
+                throw new IOException("Previous block was not written");
+            return block;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _failed = true;
+            throw new InterruptedIOException("Interrupted while writing");
+        } catch (ExecutionException e) {
+            _failed = true;
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void writeAllPending() throws IOException {
+        while (!_pending.isEmpty())
+            writePending();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkClosed();
+        if (_blockLength > 0)
+            submitBlock();
+        writeAllPending();
+        _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed)
+            return;
+        _closed = true;
+        try {
+            if (_blockLength > 0 && !_failed)
+                submitBlock();
+            writeAllPending();
+        } finally {
+            // blocks left after a failure are dropped, underlying stream is closed after a writing thread stops
+            if (!_pending.isEmpty())
+                _failed = true;
+            _executor.shutdown();
+            try {
+                //noinspection StatementWithEmptyBody
+                while (!_executor.awaitTermination(1, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _out.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package io.solit.deb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Input stream, reading a region of a file channel ahead on a separate thread.
+ * <p>
+ *     Content is read into a fixed pool of chunks, so a reading thread stays at most a pool size ahead
+ *     of a consumer, and blocks until a consumer releases a chunk. Channel position is not changed.
+ *     Failure of a reading thread is reported by a next read from this stream. Closing a stream before
+ *     its end stops a reading thread, so an executor may be reused for a next stream.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PrefetchInputStream extends InputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 0x10000;
+    public static final int DEFAULT_CHUNKS = 16;
+    private final BlockingQueue<byte[]> _free;
+    private final BlockingQueue<Chunk> _filled = new LinkedBlockingQueue<>();
+    private volatile boolean _closed;
+    private Chunk _current;
+    private int _offset;
+    private boolean _finished;
+
+    public PrefetchInputStream(Executor executor, FileChannel source, long position, long size, boolean mapped) {
+        this(executor, source, position, size, mapped, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    /**
+     * @param executor executor to run a reading task on
+     * @param source channel to read
+     * @param position position of a region in a channel
+     * @param size size of a region
+     * @param mapped whether to read a region from memory mapped windows
+     * @param chunkSize size of a chunk
+     * @param chunks number of chunks read ahead
+     */
+    public PrefetchInputStream(
+            Executor executor, FileChannel source, long position, long size, boolean mapped, int chunkSize, int chunks
+    ) {
+        Objects.requireNonNull(source, "Channel should not be null");
+        if (position < 0 || size < 0)
+            throw new IllegalArgumentException("Illegal region: " + position + ", " + size);
+        if (chunkSize < 1 || chunks < 1)
+            throw new IllegalArgumentException("Chunk size and number of chunks should be positive");
+        _free = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++)
+            _free.add(new byte[chunkSize]);
+        executor.execute(() -> {
+            try {
+                read(source, position, size, mapped);
+                _filled.add(new Chunk(null, 0, null));
+            } catch (IOException | RuntimeException e) {
+                _filled.add(new Chunk(null, 0, e));
+            } catch (InterruptedException e) {
+                _filled.add(new Chunk(null, 0, new InterruptedIOException("Interrupted while reading")));
+            }
+        });
+    }
+
+    private void read(FileChannel source, long position, long size, boolean mapped)
+            throws IOException, InterruptedException {
+        try (MappedRegion region = mapped ? new MappedRegion(source, position, size) : null) {
+            for (long end = position + size; position < end && !_closed; ) {
+                byte[] chunk = _free.take();
+                int length = (int) Math.min(chunk.length, end - position);
+                if (mapped) {
+                    ByteBuffer window = region.window();
+                    length = Math.min(length, window.remaining());
+                    window.get(chunk, 0, length);
+                } else {
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    while (buffer.hasRemaining())
+                        if (source.read(buffer, position + buffer.position()) < 0)
+                            throw new EOFException("Unexpected end of channel content");
+                }
+                position += length;
+                _filled.add(new Chunk(chunk, length, null));
+            }
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (_current != null && _offset < _current.length)
+            return true;
+        if (_finished)
+            return false;
+        if (_current != null) {
+            _free.add(_current.buffer);
+            _current = null;
+        }
+        try {
+            _current = _filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading");
+        }
+        _offset = 0;
+        if (_current.buffer != null)
+            return true;
+        _finished = true;
+        Chunk last = _current;
+        _current = null;
+        if (last.failure instanceof IOException)
+            throw (IOException) last.failure;
+        if (last.failure != null)
+            throw new IOException(last.failure.getMessage(), last.failure);
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+        if (!nextChunk())
+            return -1;
+        return _current.buffer[_offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (_closed)
+            throw new IOException("Stream closed");
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!nextChunk())
+            return -1;
+        int count = Math.min(len, _current.length - _offset);
+        System.arraycopy(_current.buffer, _offset, b, off, count);
+        _offset += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed)
+            return;
+        _closed = true;
+        // release chunks until a reading task ends, so it is not blocked waiting for one
+        try {
+            while (!_finished) {
+                if (_current != null) {
+                    _free.add(_current.buffer);
+                    _current = null;
+                }
+                _current = _filled.take();
+                _finished = _current.buffer == null;
+            }
+            _current = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+        private final Exception failure;
+
+        private Chunk(byte[] buffer, int length, Exception failure) {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
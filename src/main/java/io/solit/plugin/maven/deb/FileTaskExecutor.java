@@ -0,0 +1,140 @@
+package io.solit.plugin.maven.deb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of blocking per-file tasks, such as reading attributes, hashing or copying files.
+ * <p>
+ *     On java 21 and later every task runs on its own virtual thread, and number of tasks running
+ *     at the same time is limited by a semaphore, so blocked tasks do not hold platform threads.
+ *     On earlier runtimes tasks run on a fixed pool of daemon platform threads of the same size.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class FileTaskExecutor implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Deque<Future<?>> pending = new ArrayDeque<>();
+    private final int maxPending;
+
+    /**
+     * @param prefix name prefix of platform threads
+     * @param concurrency maximum number of tasks running at the same time
+     */
+    public FileTaskExecutor(String prefix, int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Number of threads should be positive: " + concurrency);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            permits = new Semaphore(concurrency);
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(concurrency, r -> {
+                Thread t = new Thread(r, prefix + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            permits = null;
+        }
+        maxPending = concurrency * 16;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // java 20 and earlier, including preview virtual threads, which are not enabled
+            return null;
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return permits != null;
+    }
+
+    /**
+     * Submit a task
+     * @param task task to run
+     * @param <T> type of a result
+     * @return future of a task result
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        if (permits == null)
+            return executor.submit(task);
+        return executor.submit(() -> {
+            permits.acquire();
+            try {
+                return task.call();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Run a task, which result is checked by {@link #await()}. If too many tasks are not yet completed,
+     * waits for the oldest of them, so a caller does not get far ahead of running tasks
+     * @param task task to run
+     * @throws IOException if one of previous tasks failed
+     */
+    public void run(FileTask task) throws IOException {
+        pending.add(submit(() -> {
+            task.run();
+            return null;
+        }));
+        while (pending.size() > maxPending || !pending.isEmpty() && pending.peek().isDone())
+            check(pending.poll());
+    }
+
+    /**
+     * Wait for all tasks, submitted by {@link #run}
+     * @throws IOException if one of tasks failed
+     */
+    public void await() throws IOException {
+        while (!pending.isEmpty())
+            check(pending.poll());
+    }
+
+    private static void check(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a task");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Stop running tasks, abandoning those, which are not completed
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Blocking task without a result
+     */
+    @FunctionalInterface
+    public interface FileTask {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,125 @@
+package io.solit.plugin.maven.deb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files of a stage directory, which are not copied to it, but are packaged from their original locations,
+ * e.g. dependencies in a local repository.
+ * <p>
+ *     Virtual stage is saved next to a stage directory, as <code>&lt;stageDir&gt;.virtual</code> text file,
+ *     each line containing a path within a stage directory, separated by slashes, a tab and an absolute
+ *     path of a file to package
+ * @author yaga
+ * @since 16.10.26
+ */
+public class VirtualStage {
+    private static final String HEADER = "# deb virtual stage 1";
+    private static final String EXTENSION = ".virtual";
+    private static final char SEPARATOR = '\t';
+    private final Map<String, Path> files = new TreeMap<>();
+    private long modified;
+
+    /**
+     * @param stageDir stage directory
+     * @return location of a virtual stage of a stage directory
+     */
+    public static Path location(File stageDir) {
+        File dir = stageDir.getAbsoluteFile();
+        return new File(dir.getParentFile(), dir.getName() + EXTENSION).toPath();
+    }
+
+    /**
+     * Add a file
+     * @param name path within a stage directory, separated by slashes
+     * @param source file to package
+     * @return true if file was added, false if a file of the same name was added before
+     */
+    public boolean add(String name, Path source) {
+        if (name.isEmpty() || name.startsWith("/") || name.indexOf(SEPARATOR) >= 0 || name.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Illegal virtual file name: " + name);
+        return files.putIfAbsent(name, source.toAbsolutePath()) == null;
+    }
+
+    /**
+     * @return files to package from their original locations by their paths within a stage directory
+     */
+    public Map<String, Path> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    public boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    /**
+     * @return time a virtual stage was saved in nanoseconds
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * Save virtual stage, or delete a saved one, if there are no files
+     * @param file file to save to
+     * @throws IOException if unable to write a file
+     */
+    public void save(Path file) throws IOException {
+        if (files.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                w.write(HEADER);
+                w.write('\n');
+                for (Map.Entry<String, Path> e: files.entrySet()) {
+                    w.write(e.getKey());
+                    w.write(SEPARATOR);
+                    w.write(e.getValue().toString());
+                    w.write('\n');
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Load a saved virtual stage
+     * @param file file to load from
+     * @return virtual stage, empty if file does not exist
+     * @throws IOException if unable to read a file, or it is malformed
+     */
+    public static VirtualStage load(Path file) throws IOException {
+        VirtualStage result = new VirtualStage();
+        if (!Files.isRegularFile(file))
+            return result;
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(r.readLine()))
+                throw new IOException("Not a virtual stage: " + file);
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                int separator = line.indexOf(SEPARATOR);
+                if (separator <= 0)
+                    throw new IOException("Malformed virtual stage " + file + ": " + line);
+                result.add(line.substring(0, separator), Paths.get(line.substring(separator + 1)));
+            }
+        }
+        result.modified = Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+        return result;
+    }
+}
@@ -0,0 +1,164 @@
+package io.solit.plugin.maven.deb.pack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Cache of md5 checksums of staged files, persisted between builds.
+ * <p>
+ *     Checksum is reused while path, size, modification time and file key of a file are unchanged.
+ *     Index is stored in a binary file, sorted by path, with common path prefixes omitted, and is read
+ *     on a first lookup. Only entries looked up or added during a build are saved
+ * @author yaga
+ * @since 16.10.26
+ */
+public class ChecksumCache {
+    private static final int MAGIC = 0x64656263, VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 16;
+    private final Path file;
+    private Map<String, Entry> loaded;
+    private final Map<String, Entry> used = new TreeMap<>();
+    private boolean modified;
+
+    /**
+     * @param file index file, may not exist
+     */
+    public ChecksumCache(Path file) {
+        this.file = Objects.requireNonNull(file, "Index file should not be null");
+    }
+
+    /**
+     * Find a checksum of an unchanged file
+     * @param path file path
+     * @param size current file size
+     * @param modified current modification time in nanoseconds
+     * @param fileKey current file key, or null if not available
+     * @return md5 checksum, or null if file is not cached or was changed
+     */
+    public byte[] get(Path path, long size, long modified, Object fileKey) {
+        if (loaded == null)
+            loaded = load();
+        String key = path.toAbsolutePath().toString();
+        Entry entry = loaded.get(key);
+        if (entry == null || !entry.matches(new Entry(size, modified, fileKey, null)))
+            return null;
+        used.put(key, entry);
+        return entry.checksum.clone();
+    }
+
+    /**
+     * Store a checksum of a file
+     * @param path file path
+     * @param size file size, read before computing a checksum
+     * @param modified modification time in nanoseconds, read before computing a checksum
+     * @param fileKey file key, or null if not available
+     * @param checksum md5 checksum
+     */
+    public void put(Path path, long size, long modified, Object fileKey, byte[] checksum) {
+        if (checksum.length != CHECKSUM_LENGTH)
+            throw new IllegalArgumentException("Not a md5 checksum");
+        used.put(path.toAbsolutePath().toString(), new Entry(size, modified, fileKey, checksum.clone()));
+        this.modified = true;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> result = new HashMap<>();
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION)
+                return result;
+            byte[] previous = new byte[0];
+            for (int count = is.readInt(); count > 0; count--) {
+                // path is stored as a length of a prefix, common with a previous path, and a rest of it
+                int prefix = is.readUnsignedShort();
+                byte[] path = Arrays.copyOf(previous, prefix + is.readUnsignedShort());
+                is.readFully(path, prefix, path.length - prefix);
+                long size = is.readLong(), modified = is.readLong();
+                String fileKey = is.readUTF();
+                byte[] checksum = new byte[CHECKSUM_LENGTH];
+                is.readFully(checksum);
+                result.put(new String(path, StandardCharsets.UTF_8), new Entry(size, modified, fileKey, checksum));
+                previous = path;
+            }
+            return result;
+        } catch (NoSuchFileException e) {
+            return result;
+        } catch (IOException e) {
+            // corrupted or truncated index, checksums are computed again
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Save entries, that were looked up or added, replacing an index file
+     * @throws IOException if unable to write an index
+     */
+    public void save() throws IOException {
+        if (!modified && loaded != null && loaded.size() == used.size())
+            return;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeInt(used.size());
+                byte[] previous = new byte[0];
+                for (Map.Entry<String, Entry> e: used.entrySet()) {
+                    byte[] path = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    int prefix = 0, max = Math.min(Math.min(path.length, previous.length), 0xffff);
+                    while (prefix < max && path[prefix] == previous[prefix])
+                        prefix++;
+                    if (path.length - prefix > 0xffff)
+                        throw new IOException("Path is too long: " + e.getKey());
+                    os.writeShort(prefix);
+                    os.writeShort(path.length - prefix);
+                    os.write(path, prefix, path.length - prefix);
+                    Entry entry = e.getValue();
+                    os.writeLong(entry.size);
+                    os.writeLong(entry.modified);
+                    os.writeUTF(entry.fileKey);
+                    os.write(entry.checksum);
+                    previous = path;
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        modified = false;
+    }
+
+    private static class Entry {
+        private final long size, modified;
+        private final String fileKey;
+        private final byte[] checksum;
+
+        private Entry(long size, long modified, String fileKey, byte[] checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.checksum = checksum;
+        }
+
+        private Entry(long size, long modified, Object fileKey, byte[] checksum) {
+            this(size, modified, fileKey == null ? "" : fileKey.toString(), checksum);
+        }
+
+        private boolean matches(Entry other) {
+            return size == other.size && modified == other.modified && fileKey.equals(other.fileKey);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.solit.plugin.maven.deb.pack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finder of staged files with an identical content, which may be packaged as hard links.
+ * <p>
+ *     Files are compared by size and permissions first, and are hashed only when a file of the same size and
+ *     permissions was previously added, so files with a unique size are read only once
+ * @author yaga
+ * @since 16.10.26
+ */
+public class DuplicateFinder {
+    private static final int MD5_LENGTH = 16;
+    private final Map<Long, List<Candidate>> candidates = new HashMap<>();
+
+    /**
+     * Find a previously added file with the same content, or add a file if there is none
+     * @param file file to find duplicate of
+     * @param size file size
+     * @param mode file permissions, only files with the same permissions are duplicates
+     * @param name name of a file in an archive
+     * @return duplicate, previously added, or null if file is added
+     * @throws IOException if unable to read a file
+     */
+    public Duplicate findOrAdd(Path file, long size, int mode, String name) throws IOException {
+        List<Candidate> sameSize = candidates.computeIfAbsent(size, s -> new ArrayList<>(1));
+        Candidate added = new Candidate(file, mode, name);
+        for (Candidate c: sameSize)
+            if (c.mode == mode && Arrays.equals(c.hash(), added.hash()))
+                return new Duplicate(c.name, Arrays.copyOf(c.hash, MD5_LENGTH));
+        sameSize.add(added);
+        return null;
+    }
+
+    /**
+     * File with the same content, as the one looked up
+     */
+    public static class Duplicate {
+        private final String name;
+        private final byte[] checksum;
+
+        private Duplicate(String name, byte[] checksum) {
+            this.name = name;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return name of a duplicate in an archive
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return md5 checksum of a content
+         */
+        public byte[] getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static class Candidate {
+        private final Path file;
+        private final int mode;
+        private final String name;
+        private byte[] hash;
+
+        private Candidate(Path file, int mode, String name) {
+            this.file = file;
+            this.mode = mode;
+            this.name = name;
+        }
+
+        // md5 checksum followed by sha-256 one, so it may be used as a content checksum as well
+        private byte[] hash() throws IOException {
+            if (hash != null)
+                return hash;
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5"), sha = MessageDigest.getInstance("SHA-256");
+                try (InputStream is = new DigestInputStream(new DigestInputStream(Files.newInputStream(file), md5), sha)) {
+                    byte[] buffer = new byte[0x10000];
+                    //noinspection StatementWithEmptyBody
+                    while (is.read(buffer) >= 0);
+                }
+                byte[] first = md5.digest(), second = sha.digest();
+                hash = Arrays.copyOf(first, first.length + second.length);
+                System.arraycopy(second, 0, hash, first.length, second.length);
+                return hash;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Unable to create digest", e);
+            }
+        }
+    }
+}
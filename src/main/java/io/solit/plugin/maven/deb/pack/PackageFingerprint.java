@@ -0,0 +1,247 @@
+package io.solit.plugin.maven.deb.pack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprint of package inputs: configuration, staged files and a resulting package.
+ * <p>
+ *     Staged files are compared by their size and modification time. If modification time differs,
+ *     but size and stored md5 checksum are the same, file is considered unchanged. Directories are compared
+ *     by their modification time, as it is packaged, and symbolic links are compared by their targets.
+ *     Packaged modes of files and directories are compared as well.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PackageFingerprint {
+    private static final String HEADER = "# deb package fingerprint 2";
+    private static final String CONFIGURATION = "configuration", TARGET = "target";
+    private static final String NO_CHECKSUM = "-";
+    private static final char FILE = 'f', DIRECTORY = 'd', LINK = 'l';
+    private static final char SEPARATOR = ' ';
+    private String configuration;
+    private final Map<String, FileState> files = new TreeMap<>();
+    private long targetSize = -1, targetModified = -1;
+
+    /**
+     * @param configuration description of package configuration, including control file content
+     */
+    public PackageFingerprint(String configuration) {
+        this.configuration = hash("SHA-256", configuration);
+    }
+
+    private static String key(String root, String path) {
+        return root + SEPARATOR + path;
+    }
+
+    /**
+     * Record state of staged files
+     * @param root name of a root, e.g. data or control
+     * @param manifest entries of a stage directory
+     */
+    public void scan(String root, StageManifest manifest) {
+        for (StageManifest.Entry e: manifest) {
+            if (e.getType() == StageManifest.Type.SYMLINK) {
+                files.put(key(root, e.getName()), new FileState(LINK, 0, 0, 0, hash("MD5", e.getLinkTarget())));
+                continue;
+            }
+            char type = e.getType() == StageManifest.Type.DIRECTORY ? DIRECTORY : FILE;
+            FileState state = new FileState(type, e.getSize(), e.getModified(), e.getMode(), null);
+            state.file = e.getFile();
+            files.put(key(root, e.getName()), state);
+        }
+    }
+
+    /**
+     * Record md5 checksum of a scanned file
+     * @param root name of a root
+     * @param path path, relative to a root, separated by slashes
+     * @param checksum hex md5 checksum
+     */
+    public void setChecksum(String root, String path, String checksum) {
+        FileState state = files.get(key(root, path));
+        if (state != null)
+            state.checksum = checksum;
+    }
+
+    /**
+     * Record state of a resulting package
+     * @param target package file
+     * @throws IOException if unable to read file attributes
+     */
+    public void setTarget(File target) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+        targetSize = attrs.size();
+        targetModified = attrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * Check whether a package built from a stored fingerprint is still up to date
+     * @param stored previously saved fingerprint, with a target set
+     * @param target existing package file
+     * @return true if configuration, files and target are unchanged
+     * @throws IOException if unable to read a file
+     */
+    public boolean isUpToDate(PackageFingerprint stored, File target) throws IOException {
+        if (stored == null || !configuration.equals(stored.configuration) || !files.keySet().equals(stored.files.keySet()))
+            return false;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+            if (attrs.size() != stored.targetSize || attrs.lastModifiedTime().toMillis() != stored.targetModified)
+                return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        for (Map.Entry<String, FileState> e: files.entrySet()) {
+            FileState current = e.getValue(), previous = stored.files.get(e.getKey());
+            if (current.type != previous.type || current.mode != previous.mode)
+                return false;
+            if (current.type == DIRECTORY) {
+                if (current.modified != previous.modified)
+                    return false;
+                continue;
+            }
+            if (current.type == LINK) {
+                if (!current.checksum.equals(previous.checksum))
+                    return false;
+                continue;
+            }
+            if (current.size != previous.size)
+                return false;
+            if (current.modified != previous.modified &&
+                    (previous.checksum == null || !previous.checksum.equals(md5(current.file))))
+                return false;
+            current.checksum = previous.checksum;
+        }
+        return true;
+    }
+
+    private static String md5(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+                byte[] buffer = new byte[0x2000];
+                //noinspection StatementWithEmptyBody
+                while (is.read(buffer) >= 0);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create md5 digest", e);
+        }
+    }
+
+    private static String hash(String algorithm, String content) {
+        try {
+            return toHex(MessageDigest.getInstance(algorithm).digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to create " + algorithm + " digest", e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b: digest) {
+            int s = b & 0xff;
+            if (s < 0x10)
+                sb.append('0');
+            sb.append(Integer.toHexString(s));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Save fingerprint to a file
+     * @param file file to save to
+     * @throws IOException if unable to write a file
+     */
+    public void save(File file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            w.write(HEADER);
+            w.write('\n');
+            w.write(CONFIGURATION + SEPARATOR + configuration + '\n');
+            w.write(TARGET + SEPARATOR + targetSize + SEPARATOR + targetModified + '\n');
+            for (Map.Entry<String, FileState> e: files.entrySet()) {
+                FileState state = e.getValue();
+                w.write(state.type);
+                w.write(SEPARATOR + Long.toString(state.size) + SEPARATOR + state.modified + SEPARATOR);
+                w.write(Integer.toOctalString(state.mode) + SEPARATOR);
+                w.write(state.checksum == null ? NO_CHECKSUM : state.checksum);
+                w.write(SEPARATOR);
+                w.write(e.getKey());
+                w.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Load previously saved fingerprint
+     * @param file file to load from
+     * @return fingerprint or null, if file does not exist or is malformed
+     * @throws IOException if unable to read a file
+     */
+    public static PackageFingerprint load(File file) throws IOException {
+        if (!file.isFile())
+            return null;
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] configuration, target;
+            if (!HEADER.equals(r.readLine()) ||
+                    (configuration = split(r.readLine(), 2)) == null || !CONFIGURATION.equals(configuration[0]) ||
+                    (target = split(r.readLine(), 3)) == null || !TARGET.equals(target[0]))
+                return null;
+            PackageFingerprint result = new PackageFingerprint("");
+            result.configuration = configuration[1];
+            result.targetSize = Long.parseLong(target[1]);
+            result.targetModified = Long.parseLong(target[2]);
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                // type size modified mode checksum root path
+                String[] fields = split(line, 7);
+                if (fields == null || fields[0].length() != 1)
+                    return null;
+                String checksum = NO_CHECKSUM.equals(fields[4]) ? null : fields[4];
+                result.files.put(key(fields[5], fields[6]), new FileState(
+                        fields[0].charAt(0), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Integer.parseInt(fields[3], 8), checksum
+                ));
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String[] split(String line, int count) {
+        if (line == null)
+            return null;
+        String[] result = line.split(String.valueOf(SEPARATOR), count);
+        return result.length == count ? result : null;
+    }
+
+    private static class FileState {
+        private final char type;
+        private final long size, modified;
+        private final int mode;
+        private String checksum;
+        private Path file;
+
+        private FileState(char type, long size, long modified, int mode, String checksum) {
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+            this.mode = mode;
+            this.checksum = checksum;
+        }
+    }
+}
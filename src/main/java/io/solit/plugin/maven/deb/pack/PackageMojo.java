@@ -1,8 +1,11 @@
 package io.solit.plugin.maven.deb.pack;
 
+import io.solit.deb.Compression;
 import io.solit.deb.Control;
 import io.solit.deb.DebFileWriter;
 import io.solit.deb.Version;
+import io.solit.plugin.maven.deb.FileTaskExecutor;
+import io.solit.plugin.maven.deb.VirtualStage;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
@@ -15,36 +18,44 @@ import org.apache.maven.plugins.annotations.Parameter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.time.Instant;
+import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumSet;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Create deb package based on files situated in a stage dir.
@@ -54,7 +65,10 @@ import java.util.stream.Collectors;
  *         <li>creates control file based on configuration</li>
  *         <li>copies control files to a control archive, following present symlinks</li>
  *         <li>writes md5sums of present data files</li>
- *         <li>copies data files from a stage dir to a data archive, following present symlinks</li>
+ *         <li>copies data files from a stage dir to a data archive, following present symlinks or preserving them</li>
+ *         <li>copies virtually staged files from their locations to a data archive</li>
+ *         <li>in an overlay mode, copies files of source directories from their locations,
+ *         as if they were staged</li>
  *         <li>creates symbolic links based on a configuration</li>
  *     </ul>
  * @author yaga
@@ -62,8 +76,16 @@ import java.util.stream.Collectors;
  */
 @Mojo(name = "package", defaultPhase = LifecyclePhase.PACKAGE)
 public class PackageMojo extends AbstractMojo {
-    private static final String UNIX_SEPARATOR = "/";
     private static final String SNAPSHOT = "-SNAPSHOT";
+    private static final String SOURCE_DATE_EPOCH = "SOURCE_DATE_EPOCH";
+    private static final String ROOT = "root";
+    private static final String DATA_ROOT = "data", CONTROL_ROOT = "control";
+    private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+    private static final String CHECKSUMS_EXTENSION = ".checksums";
+    private static final long SEGMENT_MIN_SIZE = 64 * 1024;
+    // hex md5 checksum, a separating space and a line feed
+    private static final int CHECKSUM_LINE_LENGTH = 32 + 2;
+    private static final int MAX_LINK_HOPS = 40;
 
     /**
      * Names of a control files that should be treated as maintainer scripts
@@ -86,11 +108,40 @@ public class PackageMojo extends AbstractMojo {
     private File stageDir;
 
     /**
-     * Stage directory, containing files to be inclued into a control section of a deb packages
+     * Stage directory, containing files to be included into a control section of a deb packages
      */
     @Parameter(defaultValue = "${project.build.directory}/control")
     private File controlDir;
 
+    /**
+     * Source directory, containing files to be included into a deb package, packaged in an overlay mode
+     */
+    @Parameter(defaultValue = "${project.basedir}/src/deb/data")
+    private File dataSourceDir;
+
+    /**
+     * Source directory, containing files to be included into a control section of a deb packages,
+     * packaged in an overlay mode
+     */
+    @Parameter(defaultValue = "${project.basedir}/src/deb/control")
+    private File controlSourceDir;
+
+    /**
+     * If set to true, files of a <code>dataSourceDir</code> and <code>controlSourceDir</code> are packaged
+     * from their locations, as if they were copied to a <code>stageDir</code> and <code>controlDir</code>
+     * without overriding staged files. Data goal should be configured the same way, not to copy them
+     */
+    @Parameter(property = "deb.overlay")
+    private boolean overlay;
+
+    /**
+     * Additional directories, containing files to be included into a deb package in an overlay mode,
+     * in an order of a precedence. Files of a <code>stageDir</code> and <code>dataSourceDir</code>
+     * take precedence over them
+     */
+    @Parameter
+    private List<File> overlayDirs;
+
     /**
      * Target file to save deb package to
      */
@@ -214,6 +265,184 @@ public class PackageMojo extends AbstractMojo {
     @Parameter
     private boolean autoPermissions = true;
 
+    /**
+     * If set to true, md5sums and installed size are computed while data files are written to a data archive,
+     * so every staged file is read only once. Compressed data archive is spooled to a temporary file
+     * in a build directory until control archive is written
+     */
+    @Parameter
+    private boolean singlePass;
+
+    /**
+     * Compression of control and data archives: <code>gzip</code>, <code>xz</code>, <code>zstd</code>
+     * or <code>none</code>
+     */
+    @Parameter(property = "deb.compression", defaultValue = "gzip")
+    private Compression compression = Compression.gzip;
+
+    /**
+     * Compression level of a data archive: 0-9 for gzip and xz, 1-22 for zstd. If not specified
+     * default level of a compression is used
+     */
+    @Parameter(property = "deb.compressionLevel")
+    private Integer compressionLevel;
+
+    /**
+     * Dictionary (window) size in bytes of a xz or zstd data archive compression.
+     * If not specified, default size of a compression level is used
+     */
+    @Parameter(property = "deb.compressionDictionarySize", defaultValue = "0")
+    private int compressionDictionarySize;
+
+    /**
+     * Number of threads to compress data archive with. If greater than one, gzip and xz data archives are split
+     * into blocks of <code>compressionBlockSize</code> bytes, compressed in parallel, and zstd uses
+     * the specified number of workers
+     */
+    @Parameter(property = "deb.compressionThreads", defaultValue = "1")
+    private int compressionThreads = 1;
+
+    /**
+     * Size of a block in bytes, compressed by a single thread, when <code>compressionThreads</code> is greater than one.
+     * Should be at least 32768. Xz blocks are at least three times the dictionary size
+     */
+    @Parameter(property = "deb.compressionBlockSize", defaultValue = "131072")
+    private int compressionBlockSize = 131072;
+
+    /**
+     * If set to true, package is built reproducibly: entries are sorted, modification times are clamped
+     * to a source date, and snapshot versions are stamped with it. Source date is taken from
+     * <code>SOURCE_DATE_EPOCH</code> environment variable, or <code>outputTimestamp</code>
+     */
+    @Parameter(property = "deb.reproducible")
+    private boolean reproducible;
+
+    /**
+     * Source date of a reproducible build, either in seconds since epoch or in ISO-8601 format.
+     * Ignored if <code>SOURCE_DATE_EPOCH</code> environment variable is set
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    private String outputTimestamp;
+
+    /**
+     * If set to true, a fingerprint of package inputs is saved next to a target package, and package is not
+     * rebuilt while configuration and staged files are unchanged. Snapshot versions are stamped with a build
+     * time, so they are never up to date unless built reproducibly
+     */
+    @Parameter(property = "deb.upToDateCheck")
+    private boolean upToDateCheck;
+
+    /**
+     * If set to true, and gzip compression is used, staged files of at least 64 kilobytes are compressed
+     * as separate gzip members, which are stored in <code>segmentCacheDir</code> and reused by later builds
+     * instead of compressing unchanged files again. Data archive is compressed by a single thread
+     */
+    @Parameter(property = "deb.segmentCache")
+    private boolean segmentCache;
+
+    /**
+     * Directory to store compressed segments of a data archive to, shared between projects
+     */
+    @Parameter(property = "deb.segmentCacheDir", defaultValue = "${user.home}/.m2/deb-cache")
+    private File segmentCacheDir;
+
+    /**
+     * Maximum size of a segment cache in bytes, least recently used segments are evicted after a build
+     */
+    @Parameter(property = "deb.segmentCacheSize", defaultValue = "1073741824")
+    private long segmentCacheSize = 1073741824L;
+
+    /**
+     * If set to true, md5 checksums of staged files are saved to a build directory, and are not computed again
+     * while path, size, modification time and file key of a file are unchanged.
+     * <p>
+     *     File content is not read to detect a change, so a file, rewritten with the same size within
+     *     a modification time granularity of a file system (e.g. two seconds on FAT, a second on ext3 or HFS+),
+     *     keeps a stale checksum in md5sums. Enable it only if staged files are not rewritten this way
+     */
+    @Parameter(property = "deb.checksumCache", defaultValue = "false")
+    private boolean checksumCache;
+
+    /**
+     * Number of threads to compute md5 checksums of staged files with, when they are computed
+     * before a data archive is written. Checksums are written in the same order regardless of it.
+     * On java 21 and later files are hashed on virtual threads, at most this number at a time
+     */
+    @Parameter(property = "deb.checksumThreads", defaultValue = "1")
+    private int checksumThreads = 1;
+
+    /**
+     * Minimal size in bytes of a staged file, which is read from memory mapped windows, instead of
+     * being read through a buffer, when it is hashed or copied to a data archive
+     */
+    @Parameter(property = "deb.mappedThreshold", defaultValue = "67108864")
+    private long mappedThreshold = DebFileWriter.DEFAULT_MAPPED_THRESHOLD;
+
+    /**
+     * If set to true, staged files with the same content and permissions are packaged as hard links
+     * to a first of them in a name order. Every file is still listed in md5sums, while installed size counts
+     * a shared content once, as installed hard links take no space of their own
+     */
+    @Parameter(property = "deb.deduplicate")
+    private boolean deduplicate;
+
+    /**
+     * Minimal gain in percents of gzip compression of a staged file. If set, every staged file of at least
+     * 64 kilobytes is sampled by deflating its first 64 kilobytes with a fastest level, and if they shrink
+     * by less than this gain, file is stored without compression. Applies to gzip compressed by a single thread only
+     */
+    @Parameter(property = "deb.minimalCompressionGain", defaultValue = "0")
+    private int minimalCompressionGain;
+
+    /**
+     * If set to true, runs of zeros in staged files, e.g. holes of sparse files, are written to a data archive
+     * without deflating them. Holes are still packaged as zeros. Applies to gzip compressed by a single thread only
+     */
+    @Parameter(property = "deb.sparseFiles")
+    private boolean sparseFiles;
+
+    /**
+     * If set to true, data archive is written by a pipeline of threads: staged files of at least a megabyte
+     * are read ahead by a reading thread, and compressed data is written by a writing thread, while files are
+     * compressed. Package content does not depend on it
+     */
+    @Parameter(property = "deb.pipeline")
+    private boolean pipeline;
+
+    /**
+     * If set to true, symbolic links of a stage dir are packaged as symbolic links with their original targets,
+     * instead of being followed. Links to files outside of a stage dir, or to missing files, are packaged as is,
+     * and loops of links fail a build. Control files are followed regardless of it
+     */
+    @Parameter(property = "deb.preserveSymbolicLinks")
+    private boolean preserveSymbolicLinks;
+
+    /**
+     * If set to true, files, recorded by a populate goal in <code>${stageDir}.virtual</code>, are packaged
+     * from their original locations, as if they were in a stage dir. Otherwise such a record is ignored,
+     * so a record of a previous build does not add files to a package
+     */
+    @Parameter(property = "deb.virtualStaging")
+    private boolean virtualStaging;
+
+    private Instant sourceDate;
+
+    // modification time of configured links
+    private long generatedTime;
+
+    // targets of configured links by their names, except for links, conflicting with staged files
+    private Map<String, String> configuredLinks = Collections.emptyMap();
+
+    private ChecksumCache checksums;
+
+    private Map<String, DuplicateFinder.Duplicate> duplicates = Collections.emptyMap();
+
+    private SegmentCache segments;
+
+    private PackageFingerprint fingerprint;
+
+    private StageManifest stage, controlStage;
+
     private List<PermissionModification> getPermissions() {
         if (permissions == null)
             permissions = new ArrayList<>();
@@ -223,88 +452,298 @@ public class PackageMojo extends AbstractMojo {
     private TarArchiveEntry createTarEntry(String name) {
         TarArchiveEntry tarArchiveEntry = new TarArchiveEntry(name);
         tarArchiveEntry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
-        tarArchiveEntry.setUserId(0);
-        tarArchiveEntry.setGroupId(0);
+        normalizeEntry(tarArchiveEntry, tarArchiveEntry.getModTime().getTime());
         return tarArchiveEntry;
     }
 
-    private void copyDataFiles(TarArchiveOutputStream dataArchive) throws IOException {
-        Path start = stageDir.toPath();
-        if (!Files.isDirectory(start))
-            return;
-        List<PermissionModification.CompiledPermissions> permissions;
+    private void normalizeEntry(TarArchiveEntry entry, long modTime) {
+        entry.setIds(0, 0);
+        entry.setNames(ROOT, ROOT);
+        if (sourceDate != null)
+            modTime = Math.min(modTime, sourceDate.toEpochMilli());
+        entry.setModTime(modTime);
+    }
+
+    private Instant resolveSourceDate() {
+        if (!reproducible)
+            return null;
+        String epoch = System.getenv(SOURCE_DATE_EPOCH);
+        try {
+            if (epoch != null && !epoch.trim().isEmpty())
+                return Instant.ofEpochSecond(Long.parseLong(epoch.trim()));
+            // single character timestamp disables reproducible build in maven plugins
+            if (outputTimestamp != null && outputTimestamp.trim().length() > 1) {
+                String timestamp = outputTimestamp.trim();
+                if (timestamp.chars().allMatch(Character::isDigit))
+                    return Instant.ofEpochSecond(Long.parseLong(timestamp));
+                return OffsetDateTime.parse(timestamp).toInstant();
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Unable to parse source date: " + e.getMessage(), e);
+        }
+        throw new IllegalArgumentException(
+                "Reproducible build requires " + SOURCE_DATE_EPOCH + " environment variable or outputTimestamp"
+        );
+    }
+
+    /**
+     * Resolve modification time of generated entries, so they do not change, until staged files do:
+     * a source date, if set, or a latest modification time of staged files otherwise
+     */
+    private long resolveGeneratedTime() {
+        if (sourceDate != null)
+            return sourceDate.toEpochMilli();
+        long latest = Long.MIN_VALUE;
+        for (StageManifest manifest: Arrays.asList(stage, controlStage))
+            for (StageManifest.Entry e: manifest)
+                latest = Math.max(latest, e.getModified());
+        return latest == Long.MIN_VALUE ? System.currentTimeMillis() : latest;
+    }
+
+    private List<PermissionModification> resolvePermissions() {
         if (this.permissions != null)
-            permissions = this.permissions.stream()
-                    .map(PermissionModification::compile).collect(Collectors.toList());
+            return this.permissions;
         else if (autoPermissions)
-            permissions = Collections.singletonList(new PermissionModification("755", new HashSet<>(Arrays.asList(
+            return Collections.singletonList(new PermissionModification("755", new HashSet<>(Arrays.asList(
                     "/bin/*", "/sbin/*", "/usr/bin/*", "/usr/sbin/*"
-            )), Collections.emptySet()).compile());
+            )), Collections.emptySet()));
         else
-            permissions = Collections.emptyList();
-        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
-
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                if (Files.isSameFile(dir, start))
-                    return FileVisitResult.CONTINUE;
-                Path relative = start.relativize(dir);
-                TarArchiveEntry entry = new TarArchiveEntry(relative.toString() + "/", TarConstants.LF_DIR);
-                entry.setIds(0, 0);
-                entry.setModTime(TarArchiveEntry.DEFAULT_DIR_MODE);
-                entry.setSize(0);
-                entry.setModTime(attrs.lastModifiedTime().toMillis());
-                for (PermissionModification.CompiledPermissions p: permissions)
-                    if (p.apply(entry, relative))
-                        break;
+            return Collections.emptyList();
+    }
+
+    private void applyPermissions(StageManifest manifest) {
+        List<PermissionModification> permissions = resolvePermissions();
+        if (permissions.isEmpty())
+            return;
+        PermissionMatcher matcher = PermissionMatcher.compile(permissions);
+        for (StageManifest.Entry e: manifest)
+            if (e.getType() != StageManifest.Type.SYMLINK)
+                matcher.apply(e);
+    }
+
+    private TarArchiveEntry createDirectoryEntry(StageManifest.Entry e) {
+        TarArchiveEntry entry = new TarArchiveEntry(e.getName() + "/", TarConstants.LF_DIR);
+        entry.setModTime(TarArchiveEntry.DEFAULT_DIR_MODE);
+        entry.setSize(0);
+        normalizeEntry(entry, e.getModified());
+        return entry;
+    }
+
+    private TarArchiveEntry createLinkEntry(String name, String target, long modTime) {
+        TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+        entry.setLinkName(target);
+        //noinspection OctalInteger
+        entry.setMode(0120777);
+        entry.setSize(0);
+        normalizeEntry(entry, modTime);
+        return entry;
+    }
+
+    private long copyDataFiles(DebFileWriter deb, TarArchiveOutputStream dataArchive, boolean checkSums) throws IOException {
+        long size = 0;
+        for (StageManifest.Entry e: stage) {
+            if (e.getType() == StageManifest.Type.SYMLINK) {
+                // links, that could not be followed, are reported by checkSymbolicLinks
+                if (preserveSymbolicLinks) {
+                    dataArchive.putArchiveEntry(createLinkEntry(e.getName(), e.getLinkTarget(), e.getModified()));
+                    dataArchive.closeArchiveEntry();
+                }
+                continue;
+            }
+            if (e.getType() == StageManifest.Type.DIRECTORY) {
+                TarArchiveEntry entry = createDirectoryEntry(e);
+                entry.setMode(e.getMode());
                 dataArchive.putArchiveEntry(entry);
                 dataArchive.closeArchiveEntry();
-                return FileVisitResult.CONTINUE;
+                continue;
             }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (attrs.isSymbolicLink())
-                    return FileVisitResult.CONTINUE;
-                Path relative = start.relativize(file);
-                TarArchiveEntry entry = createTarEntry(relative.toString());
-                entry.setSize(attrs.size());
-                entry.setModTime(attrs.lastModifiedTime().toMillis());
-                for (PermissionModification.CompiledPermissions p: permissions)
-                    if (p.apply(entry, relative))
-                        break;
-                dataArchive.putArchiveEntry(entry);
-                Files.copy(file, dataArchive);
+            Path file = e.getFile();
+            TarArchiveEntry entry = createTarEntry(e.getName());
+            entry.setSize(e.getSize());
+            entry.setMode(e.getMode());
+            normalizeEntry(entry, e.getModified());
+            DuplicateFinder.Duplicate duplicate = duplicates.isEmpty() ? null : duplicates.get(e.getName());
+            if (duplicate != null) {
+                TarArchiveEntry link = new TarArchiveEntry(entry.getName(), TarConstants.LF_LINK);
+                link.setLinkName(duplicate.getName());
+                link.setMode(entry.getMode());
+                link.setSize(0);
+                normalizeEntry(link, entry.getModTime().getTime());
+                dataArchive.putArchiveEntry(link);
                 dataArchive.closeArchiveEntry();
-                return FileVisitResult.CONTINUE;
+                if (checkSums)
+                    e.setChecksum(duplicate.getChecksum());
+                continue;
+            }
+            if (segments != null && deb.isDataSegmented() && e.getSize() >= SEGMENT_MIN_SIZE) {
+                size += e.getSize();
+                writeCachedSegment(deb, dataArchive, entry, e, checkSums);
+                continue;
+            }
+            dataArchive.putArchiveEntry(entry);
+            if (!checkSums) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    deb.transferEntry(dataArchive, channel, e.getSize());
+                }
+            } else {
+                size += e.getSize();
+                MessageDigest digest = createDigest();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    deb.transferEntry(dataArchive, channel, e.getSize(), digest);
+                }
+                e.setChecksum(digest.digest());
             }
-        };
-        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, fv);
+            dataArchive.closeArchiveEntry();
+        }
+        return size;
+    }
+
+    private void writeCachedSegment(
+            DebFileWriter deb, TarArchiveOutputStream dataArchive, TarArchiveEntry entry,
+            StageManifest.Entry e, boolean checkSums
+    ) throws IOException {
+        Path file = e.getFile();
+        MessageDigest md5 = createDigest(), content = createDigest("SHA-256");
+        try (InputStream is = new DigestInputStream(new DigestInputStream(Files.newInputStream(file), md5), content)) {
+            byte[] buffer = new byte[0x2000];
+            //noinspection StatementWithEmptyBody
+            while (is.read(buffer) >= 0);
+        }
+        if (checkSums)
+            e.setChecksum(md5.digest());
+        String key = segmentKey(entry, content.digest());
+        try (FileChannel cached = segments.open(key)) {
+            if (cached != null && deb.spliceSegment(dataArchive, entry, cached))
+                return;
+        }
+        // segment is not cached or is damaged, and is replaced
+        try (SegmentCache.PendingSegment pending = segments.store(key);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            deb.writeSegment(dataArchive, entry, channel, pending.getStream());
+            pending.commit();
+        }
     }
 
-    private void writeLinks() {
-        if (symbolicLinks == null || symbolicLinks.isEmpty())
+    private String segmentKey(TarArchiveEntry entry, byte[] content) throws IOException {
+        // everything, that affects entry header and its compressed content
+        String description = String.join("\n",
+                entry.getName(), Integer.toOctalString(entry.getMode()), Long.toString(entry.getModTime().getTime() / 1000),
+                Long.toString(entry.getSize()), Long.toString(entry.getLongUserId()), Long.toString(entry.getLongGroupId()),
+                entry.getUserName(), entry.getGroupName(), String.valueOf(compressionLevel),
+                PackageFingerprint.toHex(content)
+        );
+        return PackageFingerprint.toHex(createDigest("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private MessageDigest createDigest() throws IOException {
+        return createDigest("MD5");
+    }
+
+    private MessageDigest createDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create " + algorithm + " digest", e);
+        }
+    }
+
+    private String linkName(Link lnk) {
+        if (lnk.getLinkName() == null || lnk.getLinkName().trim().isEmpty())
+            throw new IllegalArgumentException("Link name is not specified");
+        if (lnk.getLinkDestination() == null || lnk.getLinkDestination().trim().isEmpty())
+            throw new IllegalArgumentException("Link destination is not specified");
+        String name = lnk.getLinkName().trim();
+        while (name.startsWith("/"))
+            name = name.substring(1);
+        return name;
+    }
+
+    private void writeLinks(TarArchiveOutputStream dataArchive) throws IOException {
+        for (Map.Entry<String, String> lnk: configuredLinks.entrySet()) {
+            dataArchive.putArchiveEntry(createLinkEntry(lnk.getKey(), lnk.getValue(), generatedTime));
+            dataArchive.closeArchiveEntry();
+        }
+    }
+
+    private void checkSymbolicLinks() {
+        configuredLinks = new LinkedHashMap<>();
+        if (symbolicLinks != null)
+            for (Link lnk: symbolicLinks)
+                if (configuredLinks.put(linkName(lnk), lnk.getLinkDestination().trim()) != null)
+                    throw new IllegalArgumentException("Symbolic link is specified twice: " + lnk.getLinkName());
+        Map<String, String> links = new HashMap<>();
+        for (StageManifest.Entry e: stage) {
+            if (!configuredLinks.isEmpty() && configuredLinks.remove(e.getName()) != null)
+                getLog().warn("Symbolic link " + e.getName() + " conflicts with a staged file, it is not packaged");
+            if (e.getType() != StageManifest.Type.SYMLINK)
+                continue;
+            if (preserveSymbolicLinks)
+                links.put(e.getName(), e.getLinkTarget());
+            else
+                getLog().warn("Unable to follow symbolic link, it is not packaged: " + e.getFile() + " -> " + e.getLinkTarget());
+        }
+        links.putAll(configuredLinks);
+        Map<String, String> resolved = new HashMap<>();
+        for (Map.Entry<String, String> lnk: links.entrySet()) {
+            String target = resolveLink(links, lnk.getKey());
+            if (target == null)
+                throw new IllegalArgumentException("Symbolic link " + lnk.getKey() + " -> " + lnk.getValue() + " is a part of a loop");
+            resolved.put(lnk.getKey(), target);
+        }
+        if (resolved.isEmpty())
             return;
-        for (Link lnk: symbolicLinks) {
-            if (lnk.getLinkName() == null || lnk.getLinkName().trim().isEmpty())
-                throw new IllegalArgumentException("Link name is not specified");
-            if (lnk.getLinkDestination() == null || lnk.getLinkDestination().trim().isEmpty())
-                throw new IllegalArgumentException("Link destination is not specified");
-            TarArchiveEntry tarArchiveEntry = new TarArchiveEntry(lnk.getLinkName().trim(), TarConstants.LF_SYMLINK);
-            tarArchiveEntry.setUserId(0);
-            tarArchiveEntry.setGroupId(0);
-            tarArchiveEntry.setSize(0);
-            //noinspection OctalInteger
-            tarArchiveEntry.setMode(0120777);
-            tarArchiveEntry.setLinkName(lnk.getLinkDestination().trim());
+        // targets are looked up among packaged entries, including virtually staged files
+        Set<String> outside = new HashSet<>(resolved.values());
+        outside.remove("");
+        for (StageManifest.Entry e: stage)
+            outside.remove(e.getName());
+        for (Map.Entry<String, String> lnk: resolved.entrySet())
+            if (outside.contains(lnk.getValue()))
+                getLog().debug("Symbolic link " + lnk.getKey() + " -> " + links.get(lnk.getKey()) + " points outside of a package");
+    }
+
+    /**
+     * Resolve a symbolic link within a package, as a kernel would resolve it after installation
+     * @param links targets of symbolic links by their names
+     * @param name name of a link
+     * @return resolved name, or null if links form a loop, or more than 40 of them are followed
+     */
+    static String resolveLink(Map<String, String> links, String name) {
+        List<String> resolved = new ArrayList<>(Arrays.asList(name.split("/")));
+        Deque<String> pending = new ArrayDeque<>();
+        for (int hops = 0; hops < MAX_LINK_HOPS; hops++) {
+            String target = links.get(String.join("/", resolved));
+            resolved.remove(resolved.size() - 1);
+            if (target.startsWith("/"))
+                resolved.clear();
+            String[] components = target.split("/");
+            for (int i = components.length - 1; i >= 0; i--)
+                pending.push(components[i]);
+            while (!pending.isEmpty()) {
+                String component = pending.pop();
+                if (component.isEmpty() || component.equals("."))
+                    continue;
+                if (component.equals("..")) {
+                    if (!resolved.isEmpty())
+                        resolved.remove(resolved.size() - 1);
+                    continue;
+                }
+                resolved.add(component);
+                if (links.containsKey(String.join("/", resolved)))
+                    break;
+            }
+            if (pending.isEmpty() && (resolved.isEmpty() || !links.containsKey(String.join("/", resolved))))
+                return String.join("/", resolved);
         }
+        return null;
     }
 
     private Control createControl() {
         String version = this.version, revision = this.revision;
         if (version.endsWith(SNAPSHOT)) {
             version = version.substring(0, version.length() - SNAPSHOT.length());
-            version += "+b" + ZonedDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+            Instant buildTime = sourceDate == null ? Instant.now() : sourceDate;
+            version += "+b" + buildTime.atZone(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
         }
         String maintainer = this.maintainer;
         if (maintainer == null)
@@ -365,47 +804,30 @@ public class PackageMojo extends AbstractMojo {
     }
 
     private void copyControlFiles(TarArchiveOutputStream controlArchive) throws IOException {
-        Path start = controlDir.toPath();
-        if (!Files.isDirectory(start))
-            return;
-        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
-
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                if (Files.isSameFile(dir, start))
-                    return FileVisitResult.CONTINUE;
-                Path relative = start.relativize(dir);
-                TarArchiveEntry entry = new TarArchiveEntry(relative.toString() + "/", TarConstants.LF_DIR);
-                entry.setIds(0, 0);
-                entry.setModTime(TarArchiveEntry.DEFAULT_DIR_MODE);
-                entry.setSize(0);
-                entry.setModTime(attrs.lastModifiedTime().toMillis());
-                controlArchive.putArchiveEntry(entry);
+        for (StageManifest.Entry e: controlStage) {
+            if (e.getType() == StageManifest.Type.SYMLINK)
+                continue;
+            if (e.getType() == StageManifest.Type.DIRECTORY) {
+                controlArchive.putArchiveEntry(createDirectoryEntry(e));
                 controlArchive.closeArchiveEntry();
-                return FileVisitResult.CONTINUE;
+                continue;
             }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                switch (file.getFileName().toString()) {
-                    case "control":
-                    case "md5sums":
-                        getLog().warn("Staged control file will be overridden " + file);
-                        return FileVisitResult.CONTINUE;
-                }
-                TarArchiveEntry entry = createTarEntry(start.relativize(file).toString());
-                entry.setSize(attrs.size());
-                if (maintainerScripts.contains(entry.getName()))
-                    //noinspection OctalInteger
-                    entry.setMode(0100755);
-                entry.setModTime(attrs.lastModifiedTime().toMillis());
-                controlArchive.putArchiveEntry(entry);
-                Files.copy(file, controlArchive);
-                controlArchive.closeArchiveEntry();
-                return FileVisitResult.CONTINUE;
+            switch (e.getFileName()) {
+                case "control":
+                case "md5sums":
+                    getLog().warn("Staged control file will be overridden " + e.getFile());
+                    continue;
             }
-        };
-        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, fv);
+            TarArchiveEntry entry = createTarEntry(e.getName());
+            entry.setSize(e.getSize());
+            if (maintainerScripts.contains(entry.getName()))
+                //noinspection OctalInteger
+                entry.setMode(0100755);
+            normalizeEntry(entry, e.getModified());
+            controlArchive.putArchiveEntry(entry);
+            Files.copy(e.getFile(), controlArchive);
+            controlArchive.closeArchiveEntry();
+        }
     }
 
     private void writeControl(TarArchiveOutputStream controlArchive, Control control) throws IOException {
@@ -420,62 +842,221 @@ public class PackageMojo extends AbstractMojo {
         controlArchive.closeArchiveEntry();
     }
 
-    private long writeCheckSumsAndComputeSize(TarArchiveOutputStream controlArchive) throws IOException {
-        long size;
+    private void writeCheckSums(TarArchiveOutputStream controlArchive) throws IOException {
+        // md5sums are streamed from checksums kept by a manifest, as their size is known from file names
+        long size = 0;
+        for (StageManifest.Entry e: stage)
+            if (e.getType() == StageManifest.Type.FILE)
+                size += CHECKSUM_LINE_LENGTH + e.getName().getBytes(StandardCharsets.UTF_8).length;
         TarArchiveEntry entry = createTarEntry("md5sums");
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        try (Writer wr = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
-            size = writeCheckSumsAndComputeSize(wr);
-        }
-        entry.setSize(buffer.size());
+        entry.setSize(size);
         controlArchive.putArchiveEntry(entry);
-        buffer.writeTo(controlArchive);
+        for (StageManifest.Entry e: stage) {
+            if (e.getType() != StageManifest.Type.FILE)
+                continue;
+            byte[] digest = e.getChecksum();
+            if (digest == null)
+                throw new IOException("Checksum of " + e.getFile() + " was not computed");
+            String checkSum = PackageFingerprint.toHex(digest), name = e.getName();
+            controlArchive.write((checkSum + ' ' + name + '\n').getBytes(StandardCharsets.UTF_8));
+            if (fingerprint != null)
+                fingerprint.setChecksum(DATA_ROOT, name, checkSum);
+        }
         controlArchive.closeArchiveEntry();
+    }
+
+    /**
+     * Find staged files, which duplicate a content of a previous file, before any archive is written,
+     * so installed size may be known in advance
+     */
+    private void findDuplicates() throws IOException {
+        if (!deduplicate)
+            return;
+        DuplicateFinder finder = new DuplicateFinder();
+        duplicates = new HashMap<>();
+        for (StageManifest.Entry e: stage) {
+            if (e.getType() != StageManifest.Type.FILE || e.getSize() == 0)
+                continue;
+            DuplicateFinder.Duplicate duplicate = finder.findOrAdd(e.getFile(), e.getSize(), e.getMode(), e.getName());
+            if (duplicate != null)
+                duplicates.put(e.getName(), duplicate);
+        }
+    }
+
+    private long computeCheckSums() throws IOException {
+        long size = 0;
+        // files are hashed concurrently, but checksums are stored in a manifest order
+        Deque<PendingCheckSum> pending = new ArrayDeque<>();
+        Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        int maxPending = checksumThreads * 16;
+        FileTaskExecutor executor = checksumThreads > 1 ? new FileTaskExecutor("deb-checksum-", checksumThreads) : null;
+        try {
+            for (StageManifest.Entry e: stage) {
+                if (e.getType() != StageManifest.Type.FILE)
+                    continue;
+                Path file = e.getFile();
+                DuplicateFinder.Duplicate duplicate = duplicates.isEmpty() ? null : duplicates.get(e.getName());
+                // content of a duplicate is installed once, and its checksum is already known
+                if (duplicate == null)
+                    size += e.getSize();
+                byte[] cached = duplicate != null ? duplicate.getChecksum() : checksums == null ? null :
+                        checksums.get(file, e.getSize(), e.getModifiedNanos(), e.getFileKey());
+                Future<byte[]> checkSum;
+                if (cached != null)
+                    checkSum = CompletableFuture.completedFuture(cached);
+                else if (executor != null)
+                    checkSum = executor.submit(() -> digest(file, e.getSize(), buffers));
+                else
+                    checkSum = CompletableFuture.completedFuture(digest(file, e.getSize(), buffers));
+                pending.add(new PendingCheckSum(e, file, cached == null, checkSum));
+                while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().checkSum.isDone()))
+                    storeCheckSum(pending.poll());
+            }
+            while (!pending.isEmpty())
+                storeCheckSum(pending.poll());
+        } finally {
+            if (executor != null)
+                executor.close();
+        }
         return size;
     }
 
-    private long writeCheckSumsAndComputeSize(Writer writer) throws IOException {
-        Path start = stageDir.toPath();
-        if (!Files.isDirectory(start))
-            return 0L;
-        LongAdder adder = new LongAdder();
-        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (attrs.isSymbolicLink())
-                    return FileVisitResult.CONTINUE;
-                adder.add(attrs.size());
-                try (DigestInputStream dis = new DigestInputStream(new FileInputStream(file.toFile()), MessageDigest.getInstance("MD5"))) {
-                    byte[] buffer = new byte[0x2000];
-                    //noinspection StatementWithEmptyBody
-                    while (dis.read(buffer) >= 0);
-                    for (byte b: dis.getMessageDigest().digest()) {
-                        int s = b & 0xff;
-                        if (s < 0x10)
-                            writer.write('0');
-                        writer.write(Integer.toHexString(s));
-                    }
-                    writer.write(' ');
-                    String prefix = "";
-                    for (Path p: start.relativize(file)) {
-                        writer.write(prefix);
-                        writer.write(p.toString());
-                        prefix = UNIX_SEPARATOR;
-                    }
-                    writer.write('\n');
-                } catch (NoSuchAlgorithmException e) {
-                    throw new IOException("Unable to create md5 digest", e);
-                }
-                return FileVisitResult.CONTINUE;
+    private void storeCheckSum(PendingCheckSum pending) throws IOException {
+        byte[] checkSum;
+        StageManifest.Entry entry = pending.entry;
+        try {
+            checkSum = pending.checkSum.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing checksums");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Unable to compute checksum of " + pending.file, e.getCause());
+        }
+        if (checksums != null && pending.computed)
+            checksums.put(pending.file, entry.getSize(), entry.getModifiedNanos(), entry.getFileKey(), checkSum);
+        entry.setChecksum(checkSum);
+    }
+
+    /**
+     * Compute md5 checksum of a file
+     * @param buffers buffers, released by previous tasks, so no more buffers are allocated,
+     *                than there are tasks running at the same time, whether they run on pooled or virtual threads
+     */
+    private byte[] digest(Path file, long size, Queue<byte[]> buffers) throws IOException {
+        MessageDigest digest = createDigest();
+        if (size >= mappedThreshold) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                DebFileWriter.digest(channel, 0, size, digest);
             }
-        };
-        Files.walkFileTree(start, fv);
-        return adder.longValue();
+            return digest.digest();
+        }
+        byte[] buffer = buffers.poll();
+        if (buffer == null)
+            buffer = new byte[0x10000];
+        try (InputStream is = Files.newInputStream(file)) {
+            for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+                digest.update(buffer, 0, read);
+        } finally {
+            buffers.offer(buffer);
+        }
+        return digest.digest();
+    }
+
+    private void writeTwoPass(DebFileWriter deb, Control control) throws IOException {
+        try (TarArchiveOutputStream controlArchive = deb.openControl()) {
+            long size = computeCheckSums();
+            writeCheckSums(controlArchive);
+            control.setInstalledSize(size);
+            writeControl(controlArchive, control);
+            copyControlFiles(controlArchive);
+        }
+        try (TarArchiveOutputStream dataArchive = deb.openData()) {
+            copyDataFiles(deb, dataArchive, false);
+            writeLinks(dataArchive);
+        }
+    }
+
+    private void writeSinglePass(DebFileWriter deb, Control control) throws IOException {
+        Files.createDirectories(buildDir.toPath());
+        File spool = File.createTempFile(control.getPackageName() + "-", ".data", buildDir);
+        TarArchiveOutputStream spooled = null;
+        try {
+            spooled = deb.spoolData(spool);
+        } finally {
+            // once spooling started, spool file is deleted by a deb writer
+            if (spooled == null)
+                Files.deleteIfExists(spool.toPath());
+        }
+        long size;
+        try (TarArchiveOutputStream dataArchive = spooled) {
+            size = copyDataFiles(deb, dataArchive, true);
+            writeLinks(dataArchive);
+        }
+        try (TarArchiveOutputStream controlArchive = deb.openControl()) {
+            writeCheckSums(controlArchive);
+            control.setInstalledSize(size);
+            writeControl(controlArchive, control);
+            copyControlFiles(controlArchive);
+        }
+    }
+
+    private List<Path> dataRoots() {
+        List<Path> roots = new ArrayList<>();
+        roots.add(stageDir.toPath());
+        if (overlay) {
+            roots.add(dataSourceDir.toPath());
+            if (overlayDirs != null)
+                for (File dir: overlayDirs)
+                    roots.add(dir.toPath());
+        }
+        return roots;
+    }
+
+    private List<Path> controlRoots() {
+        return overlay
+                ? Arrays.asList(controlDir.toPath(), controlSourceDir.toPath())
+                : Collections.singletonList(controlDir.toPath());
+    }
+
+    private String describeConfiguration(Control control, VirtualStage virtual) throws IOException {
+        StringWriter result = new StringWriter();
+        control.writeControlFile(result);
+        result.append("\ncompression: ").append(String.valueOf(compression))
+                .append(' ').append(String.valueOf(compressionLevel))
+                .append(' ').append(String.valueOf(compressionDictionarySize))
+                .append(' ').append(String.valueOf(compressionThreads))
+                .append(' ').append(String.valueOf(compressionBlockSize));
+        result.append("\nsegment cache: ").append(String.valueOf(segmentCache));
+        result.append("\ndeduplicate: ").append(String.valueOf(deduplicate));
+        result.append("\ndata roots: ").append(String.valueOf(stage.getRoots()));
+        result.append("\ncontrol roots: ").append(String.valueOf(controlStage.getRoots()));
+        result.append("\npreserve symbolic links: ").append(String.valueOf(preserveSymbolicLinks));
+        result.append("\nminimal compression gain: ").append(String.valueOf(minimalCompressionGain));
+        result.append("\nsparse files: ").append(String.valueOf(sparseFiles));
+        result.append("\nsource date: ").append(String.valueOf(sourceDate));
+        result.append("\nmaintainer scripts: ").append(String.valueOf(new TreeSet<>(maintainerScripts)));
+        result.append("\nauto permissions: ").append(String.valueOf(autoPermissions));
+        if (permissions != null)
+            for (PermissionModification p: permissions)
+                result.append("\npermission: ").append(p.getPermissions())
+                        .append(' ').append(String.valueOf(new TreeSet<>(p.getInclude())))
+                        .append(' ').append(String.valueOf(new TreeSet<>(p.getExclude())));
+        if (symbolicLinks != null)
+            for (Link lnk: symbolicLinks)
+                result.append("\nlink: ").append(lnk.getLinkName()).append(" -> ").append(lnk.getLinkDestination());
+        for (Map.Entry<String, Path> e: virtual.getFiles().entrySet())
+            result.append("\nvirtual: ").append(e.getKey()).append(" -> ").append(String.valueOf(e.getValue()));
+        return result.toString();
     }
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         try {
+            if (checksumThreads < 1)
+                throw new IllegalArgumentException("Number of checksum threads should be positive: " + checksumThreads);
+            sourceDate = resolveSourceDate();
             Control control = createControl();
             File target = this.target;
             if (target == null) {
@@ -484,22 +1065,90 @@ public class PackageMojo extends AbstractMojo {
                         control.getArchitecture() + ".deb";
                 target = new File(this.buildDir, targetName);
             }
-            try (DebFileWriter deb = new DebFileWriter(target)) {
-                try (TarArchiveOutputStream controlArchive = deb.openControl()) {
-                    long size = writeCheckSumsAndComputeSize(controlArchive);
-                    control.setInstalledSize(size);
-                    writeControl(controlArchive, control);
-                    copyControlFiles(controlArchive);
-                }
-                try (TarArchiveOutputStream dataArchive = deb.openData()) {
-                    copyDataFiles(dataArchive);
-                    writeLinks();
+            Path virtualLocation = VirtualStage.location(stageDir);
+            VirtualStage virtual = virtualStaging ? VirtualStage.load(virtualLocation) : new VirtualStage();
+            if (!virtualStaging && Files.exists(virtualLocation))
+                getLog().warn("Virtual staging is not set, virtually staged files are not packaged: " + virtualLocation);
+            if (!virtual.isEmpty())
+                getLog().info("Packaging " + virtual.getFiles().size() + " virtually staged files from their locations");
+            stage = StageManifest.scan(dataRoots(), virtual, !preserveSymbolicLinks, checksumCache);
+            controlStage = StageManifest.scan(controlRoots(), null, true, false);
+            generatedTime = resolveGeneratedTime();
+            applyPermissions(stage);
+            checkSymbolicLinks();
+            File fingerprintFile = new File(target.getPath() + FINGERPRINT_EXTENSION);
+            if (upToDateCheck) {
+                fingerprint = new PackageFingerprint(describeConfiguration(control, virtual));
+                fingerprint.scan(DATA_ROOT, stage);
+                fingerprint.scan(CONTROL_ROOT, controlStage);
+                if (fingerprint.isUpToDate(PackageFingerprint.load(fingerprintFile), target)) {
+                    getLog().info("Package is up to date: " + target);
+                    // save modification times of files, that were found unchanged by content
+                    fingerprint.setTarget(target);
+                    fingerprint.save(fingerprintFile);
+                    return;
                 }
             }
+            Files.deleteIfExists(fingerprintFile.toPath());
+            if (minimalCompressionGain > 0 && (compression != Compression.gzip || compressionThreads > 1 && !segmentCache))
+                getLog().warn("Minimal compression gain applies to gzip compressed by a single thread, and is ignored");
+            if (sparseFiles && (compression != Compression.gzip || compressionThreads > 1 && !segmentCache))
+                getLog().warn("Sparse files apply to gzip compressed by a single thread, and are ignored");
+            if (segmentCache && compression != Compression.gzip)
+                getLog().warn("Segment cache requires gzip compression, and is ignored for " + compression);
+            else if (segmentCache)
+                segments = new SegmentCache(segmentCacheDir.toPath(), segmentCacheSize);
+            if (checksumCache)
+                checksums = new ChecksumCache(new File(buildDir, control.getPackageName() + CHECKSUMS_EXTENSION).toPath());
+            try (DebFileWriter deb = sourceDate == null ? new DebFileWriter(target) : new DebFileWriter(target, sourceDate)) {
+                deb.setCompression(compression);
+                deb.setCompressionLevel(compressionLevel);
+                deb.setCompressionDictionarySize(compressionDictionarySize);
+                deb.setCompressionThreads(compressionThreads);
+                deb.setCompressionBlockSize(compressionBlockSize);
+                deb.setSegmentedData(segments != null);
+                deb.setMappedThreshold(mappedThreshold);
+                deb.setAdaptiveCompression(minimalCompressionGain);
+                deb.setSparseData(sparseFiles);
+                deb.setPipelined(pipeline);
+                findDuplicates();
+                if (singlePass)
+                    writeSinglePass(deb, control);
+                else
+                    writeTwoPass(deb, control);
+                if (deb.getSampledEntries() > 0)
+                    getLog().info(String.format(
+                            "Stored %d of %d sampled files (%d of %d bytes) without compression, gaining less than %d%%",
+                            deb.getStoredEntries(), deb.getSampledEntries(), deb.getStoredSize(), deb.getSampledSize(),
+                            minimalCompressionGain
+                    ));
+            }
+            if (segments != null)
+                segments.evict();
+            if (checksums != null)
+                checksums.save();
+            if (fingerprint != null) {
+                fingerprint.setTarget(target);
+                fingerprint.save(fingerprintFile);
+            }
         } catch (IllegalArgumentException e) {
             throw new MojoFailureException(e.getMessage(), e);
         } catch (IOException e) {
             throw new MojoExecutionException("Unable to write directory", e);
         }
     }
+
+    private static class PendingCheckSum {
+        private final StageManifest.Entry entry;
+        private final Path file;
+        private final boolean computed;
+        private final Future<byte[]> checkSum;
+
+        private PendingCheckSum(StageManifest.Entry entry, Path file, boolean computed, Future<byte[]> checkSum) {
+            this.entry = entry;
+            this.file = file;
+            this.computed = computed;
+            this.checkSum = checkSum;
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package io.solit.plugin.maven.deb.pack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Permission rules, compiled into a single matcher of packaged paths.
+ * <p>
+ *     Include and exclude glob patterns of every rule are placed into a trie of directory components
+ *     by their literal leading components. Patterns without wildcards are matched by a trie lookup only,
+ *     while the rest of patterns of the same rule and kind, sharing a trie node, are combined into a single
+ *     regular expression. Path is matched by a single walk down the trie, evaluating only patterns,
+ *     which literal components it contains, and first rule, including and not excluding a path, wins,
+ *     as if rules were applied one by one.
+ * <p>
+ *     Patterns follow {@link java.nio.file.FileSystem#getPathMatcher} glob syntax of unix file systems,
+ *     and are matched against absolute paths within a package
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PermissionMatcher {
+    private static final String GLOB_META = "\\*?[{";
+    private static final String REGEX_META = ".^$+{[]|()";
+    private final int[] permissions;
+    private final boolean[] includeAll;
+    private final Node root = new Node();
+
+    private PermissionMatcher(List<PermissionModification> rules) {
+        permissions = new int[rules.size()];
+        includeAll = new boolean[rules.size()];
+        Map<Node, Map<Integer, List<String>>> wildcards = new LinkedHashMap<>();
+        for (int rule = 0; rule < rules.size(); rule++) {
+            PermissionModification modification = rules.get(rule);
+            permissions[rule] = modification.parsePermissions();
+            includeAll[rule] = modification.getInclude().isEmpty();
+            for (String glob: modification.getInclude())
+                add(wildcards, rule, false, glob.trim());
+            for (String glob: modification.getExclude())
+                add(wildcards, rule, true, glob.trim());
+        }
+        for (Map.Entry<Node, Map<Integer, List<String>>> node: wildcards.entrySet())
+            for (Map.Entry<Integer, List<String>> patterns: node.getValue().entrySet()) {
+                int key = patterns.getKey();
+                node.getKey().patterns.add(new Wildcard(key >> 1, (key & 1) != 0, String.join("|", patterns.getValue())));
+            }
+    }
+
+    /**
+     * Compile permission rules
+     * @param rules rules in an order of a priority
+     * @return matcher of rules
+     * @throws IllegalArgumentException if permissions or patterns are malformed
+     */
+    public static PermissionMatcher compile(List<PermissionModification> rules) {
+        return new PermissionMatcher(rules);
+    }
+
+    private void add(Map<Node, Map<Integer, List<String>>> wildcards, int rule, boolean exclude, String glob) {
+        Node node = root;
+        int start = glob.startsWith("/") ? 1 : 0;
+        // relative patterns are matched against absolute paths, so they are evaluated at a root
+        while (start > 0 && start <= glob.length()) {
+            int end = glob.indexOf('/', start);
+            if (end < 0)
+                end = glob.length();
+            String component = glob.substring(start, end);
+            if (!isLiteral(component))
+                break;
+            node = node.children.computeIfAbsent(component, c -> new Node());
+            start = end + 1;
+        }
+        if (start > glob.length()) {
+            node.exact.add(exclude ? ~rule : rule);
+            return;
+        }
+        wildcards.computeIfAbsent(node, n -> new LinkedHashMap<>())
+                .computeIfAbsent(rule << 1 | (exclude ? 1 : 0), k -> new ArrayList<>())
+                .add("(?:" + toRegex(glob) + ")");
+    }
+
+    private static boolean isLiteral(String component) {
+        if (component.isEmpty())
+            return false;
+        for (int i = 0; i < component.length(); i++)
+            if (GLOB_META.indexOf(component.charAt(i)) >= 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Convert a glob to a regular expression, the same way a unix file system does
+     * @param glob glob pattern
+     * @return regular expression, matching whole paths
+     */
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i++);
+            switch (c) {
+                case '\\':
+                    if (i == glob.length())
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    char escaped = glob.charAt(i++);
+                    if (GLOB_META.indexOf(escaped) >= 0 || REGEX_META.indexOf(escaped) >= 0)
+                        regex.append('\\');
+                    regex.append(escaped);
+                    break;
+                case '[':
+                    i = appendClass(glob, i, regex);
+                    break;
+                case '{':
+                    if (inGroup)
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i - 1);
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(inGroup ? "))" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? ")|(?:" : ",");
+                    break;
+                case '*':
+                    if (i < glob.length() && glob.charAt(i) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                default:
+                    if (REGEX_META.indexOf(c) >= 0)
+                        regex.append('\\');
+                    regex.append(c);
+            }
+        }
+        if (inGroup)
+            throw new PatternSyntaxException("Missing '}'", glob, i - 1);
+        return regex.toString();
+    }
+
+    private static int appendClass(String glob, int i, StringBuilder regex) {
+        // class never matches a name separator
+        regex.append("[[^/]&&[");
+        if (i < glob.length() && glob.charAt(i) == '^') {
+            regex.append("\\^");
+            i++;
+        } else {
+            if (i < glob.length() && glob.charAt(i) == '!') {
+                regex.append('^');
+                i++;
+            }
+            if (i < glob.length() && glob.charAt(i) == '-') {
+                regex.append('-');
+                i++;
+            }
+        }
+        boolean hasRangeStart = false, closed = false;
+        char last = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i++);
+            if (c == ']') {
+                closed = true;
+                break;
+            }
+            if (c == '/')
+                throw new PatternSyntaxException("Explicit 'name separator' in class", glob, i - 1);
+            if (c == '\\' || c == '[' || c == '&' && i < glob.length() && glob.charAt(i) == '&')
+                regex.append('\\');
+            regex.append(c);
+            if (c == '-') {
+                if (!hasRangeStart)
+                    throw new PatternSyntaxException("Invalid range", glob, i - 1);
+                if (i == glob.length() || glob.charAt(i) == ']')
+                    continue;
+                c = glob.charAt(i++);
+                if (c < last)
+                    throw new PatternSyntaxException("Invalid range", glob, i - 3);
+                regex.append(c);
+                hasRangeStart = false;
+            } else {
+                hasRangeStart = true;
+                last = c;
+            }
+        }
+        if (!closed)
+            throw new PatternSyntaxException("Missing ']", glob, i - 1);
+        regex.append("]]");
+        return i;
+    }
+
+    /**
+     * Find a winning rule of a path
+     * @param name path within a package, relative to its root, separated by slashes
+     * @return index of a first rule, including and not excluding a path, or -1 if there is none
+     */
+    public int match(String name) {
+        String path = "/" + name;
+        boolean[] included = new boolean[permissions.length], excluded = new boolean[permissions.length];
+        Node node = root;
+        evaluate(node, path, included, excluded);
+        for (int start = 0; node != null && start <= name.length(); ) {
+            int end = name.indexOf('/', start);
+            if (end < 0)
+                end = name.length();
+            node = node.children.get(name.substring(start, end));
+            start = end + 1;
+            if (node == null)
+                break;
+            evaluate(node, path, included, excluded);
+            if (start > name.length())
+                for (int rule: node.exact)
+                    if (rule < 0)
+                        excluded[~rule] = true;
+                    else
+                        included[rule] = true;
+        }
+        for (int rule = 0; rule < permissions.length; rule++)
+            if ((includeAll[rule] || included[rule]) && !excluded[rule])
+                return rule;
+        return -1;
+    }
+
+    private static void evaluate(Node node, String path, boolean[] included, boolean[] excluded) {
+        for (Wildcard w: node.patterns) {
+            boolean[] matched = w.exclude ? excluded : included;
+            if (!matched[w.rule] && w.pattern.matcher(path).matches())
+                matched[w.rule] = true;
+        }
+    }
+
+    /**
+     * @param rule index of a rule
+     * @return octal permissions of a rule
+     */
+    public int getPermissions(int rule) {
+        return permissions[rule];
+    }
+
+    /**
+     * Apply permissions of a winning rule to an entry
+     * @param entry manifest entry
+     * @return true if some rule was applied
+     */
+    public boolean apply(StageManifest.Entry entry) {
+        int rule = match(entry.getName());
+        if (rule < 0)
+            return false;
+        entry.setMode((entry.getMode() & PermissionModification.TYPE_MASK) | permissions[rule]);
+        return true;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        // rule indexes of literal patterns, inverted for excludes
+        private final List<Integer> exact = new ArrayList<>();
+        private final List<Wildcard> patterns = new ArrayList<>();
+    }
+
+    private static class Wildcard {
+        private final int rule;
+        private final boolean exclude;
+        private final Pattern pattern;
+
+        private Wildcard(int rule, boolean exclude, String regex) {
+            this.rule = rule;
+            this.exclude = exclude;
+            this.pattern = Pattern.compile(regex);
+        }
+    }
+}
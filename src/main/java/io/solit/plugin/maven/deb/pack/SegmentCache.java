@@ -0,0 +1,175 @@
+package io.solit.plugin.maven.deb.pack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Persistent cache of compressed data archive segments, shared between builds.
+ * <p>
+ *     Segments are stored in files, named by a key, in subdirectories named by first two characters of a key.
+ *     Modification time of a segment is updated when it is used, and least recently used segments
+ *     are evicted, when total size of a cache exceeds its limit.
+ * <p>
+ *     Cache may be shared by concurrent builds, e.g. modules of a parallel build, so a segment is read
+ *     from a channel, opened before it is used, and remains readable, if another build evicts it meanwhile
+ * @author yaga
+ * @since 16.10.26
+ */
+public class SegmentCache {
+    private static final String SEGMENT_EXTENSION = ".gz", TEMP_EXTENSION = ".tmp";
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * @param directory cache directory, created if not exists
+     * @param maxSize maximum total size of cached segments in bytes
+     */
+    public SegmentCache(Path directory, long maxSize) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("Segment cache size should not be negative: " + maxSize);
+        this.directory = Objects.requireNonNull(directory, "Cache directory should not be null");
+        this.maxSize = maxSize;
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Open a cached segment and mark it as recently used
+     * @param key segment key
+     * @return channel to read a segment from, or null if segment is not cached
+     */
+    public FileChannel open(String key) {
+        Path segment = path(key);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(segment, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(segment, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted concurrently, open channel is still readable
+        }
+        return channel;
+    }
+
+    /**
+     * Start storing a segment
+     * @param key segment key
+     * @return pending segment, to write compressed segment to
+     * @throws IOException if unable to create a temporary file
+     */
+    public PendingSegment store(String key) throws IOException {
+        Path segment = path(key);
+        Files.createDirectories(segment.getParent());
+        Path temp = Files.createTempFile(segment.getParent(), key, TEMP_EXTENSION);
+        return new PendingSegment(segment, temp);
+    }
+
+    /**
+     * Remove least recently used segments until total size of a cache fits its limit
+     * @throws IOException if unable to list cache directory
+     */
+    public void evict() throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+        List<Path> segments = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path dir: dirs)
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_EXTENSION)) {
+                    for (Path file: files) {
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                            segments.add(file);
+                            attributes.add(attrs);
+                            total += attrs.size();
+                        } catch (NoSuchFileException e) {
+                            // evicted concurrently
+                        }
+                    }
+                }
+        }
+        if (total <= maxSize)
+            return;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++)
+            order.add(i);
+        order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+        for (int i: order) {
+            if (total <= maxSize)
+                break;
+            try {
+                Files.deleteIfExists(segments.get(i));
+            } catch (IOException e) {
+                // segment is used by a concurrent build on a file system, that does not delete open files
+                continue;
+            }
+            total -= attributes.get(i).size();
+        }
+    }
+
+    /**
+     * Segment being stored. Segment is written to a temporary file, and becomes visible when committed
+     */
+    public static class PendingSegment implements AutoCloseable {
+        private final Path segment, temp;
+        private final OutputStream stream;
+        private boolean committed;
+
+        private PendingSegment(Path segment, Path temp) throws IOException {
+            this.segment = segment;
+            this.temp = temp;
+            this.stream = Files.newOutputStream(temp);
+        }
+
+        /**
+         * @return stream to write compressed segment to
+         */
+        public OutputStream getStream() {
+            return stream;
+        }
+
+        /**
+         * Make a written segment visible to other builds
+         * @throws IOException if unable to move a segment
+         */
+        public void commit() throws IOException {
+            stream.close();
+            Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Discard a segment, if it was not committed
+         * @throws IOException if unable to delete a temporary file
+         */
+        @Override
+        public void close() throws IOException {
+            if (committed)
+                return;
+            try {
+                stream.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package io.solit.plugin.maven.deb.pack;
+
+import io.solit.plugin.maven.deb.VirtualStage;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entries of a stage directory, or of several layered ones, collected by a single walk in a name order,
+ * following symbolic links or not.
+ * <p>
+ *     Every packaging phase (checksums, installed size, archive content, permissions and up to date check)
+ *     consumes the same entries, so they agree with each other, and file attributes are read only once.
+ *     Symbolic links, which are not followed or could not be followed, are kept as {@link Type#SYMLINK}
+ *     entries with their targets
+ * <p>
+ *     Entries are stored as a path trie: every entry keeps its last name component, shared with
+ *     other entries of the same name, and an index of its parent, while types, modes, sizes
+ *     and modification times are kept in primitive arrays. {@link Entry} is a view of an index, and its name
+ *     is built once, when it is iterated, from a name of its parent, so a manifest of a million files
+ *     takes tens of megabytes
+ * <p>
+ *     Files of a {@link VirtualStage} are merged into a manifest, as if they were copied to a stage directory,
+ *     and are read from their original locations. Directories, containing only virtual files,
+ *     are modified at a time a virtual stage was recorded
+ * <p>
+ *     Layered stage directories are merged into a single manifest, as if they were copied into a first
+ *     of them without overriding files: a file of a first directory, containing a name, wins,
+ *     while directories of the same name are merged. Every file is read from a directory it was found in
+ * @author yaga
+ * @since 16.10.26
+ */
+public class StageManifest implements Iterable<StageManifest.Entry> {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int CHECKSUM_LENGTH = 16;
+    private static final Type[] TYPES = Type.values();
+    private static final int MAX_LAYERS = 256;
+    private final List<Path> roots;
+    private int count;
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] modes = new int[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] modified = new long[INITIAL_CAPACITY];
+    private Object[] fileKeys;
+    private byte[] layers;
+    private byte[] checksums;
+    private BitSet checksummed;
+    // symbolic link targets and original locations of virtual files, allocated when a first one is added
+    private String[] linkTargets;
+    private Path[] sources;
+    // directories, containing only virtual files, which do not exist in any stage directory
+    private final BitSet virtualDirectories = new BitSet();
+    private Map<String, String> components = new HashMap<>();
+
+    StageManifest(List<Path> roots, boolean fileKeys) {
+        this.roots = roots == null ? Collections.emptyList() : roots;
+        if (fileKeys)
+            this.fileKeys = new Object[INITIAL_CAPACITY];
+        if (this.roots.size() > 1)
+            this.layers = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Walk a stage directory, following symbolic links, without keeping file keys
+     * @param root stage directory, may not exist
+     * @return manifest of a directory content, excluding a directory itself, empty if directory does not exist
+     * @throws IOException if unable to read a directory, or it contains a loop of symbolic links
+     * @see #scan(Path, VirtualStage, boolean, boolean)
+     */
+    public static StageManifest scan(Path root) throws IOException {
+        return scan(root, null, true, false);
+    }
+
+    /**
+     * Walk a stage directory
+     * @param root stage directory, may not exist
+     * @param virtual files to package from their original locations, as if they were in a stage directory,
+     *                unless a stage directory contains a file of the same name; may be null
+     * @param followLinks whether to follow symbolic links, or to keep every link as a {@link Type#SYMLINK} entry
+     * @param fileKeys whether to keep file keys of regular files, as required by a {@link ChecksumCache}
+     * @return manifest of a directory content, excluding a directory itself, empty if directory does not exist
+     * @throws IOException if unable to read a directory or a virtual file, or a directory contains
+     * a loop of followed symbolic links
+     * @see #scan(List, VirtualStage, boolean, boolean)
+     */
+    public static StageManifest scan(Path root, VirtualStage virtual, boolean followLinks, boolean fileKeys)
+            throws IOException {
+        return scan(Collections.singletonList(root), virtual, followLinks, fileKeys);
+    }
+
+    /**
+     * Walk layered stage directories
+     * @param roots stage directories in an order of a precedence, any of them may not exist
+     * @param virtual files to package from their original locations, as if they were in a last stage directory,
+     *                unless some stage directory contains a file of the same name; may be null
+     * @param followLinks whether to follow symbolic links, or to keep every link as a {@link Type#SYMLINK} entry
+     * @param fileKeys whether to keep file keys of regular files, as required by a {@link ChecksumCache}
+     * @return manifest of merged directories content, empty if none of directories exist
+     * @throws IOException if unable to read a directory or a virtual file, or a directory contains
+     * a loop of followed symbolic links
+     */
+    public static StageManifest scan(List<Path> roots, VirtualStage virtual, boolean followLinks, boolean fileKeys)
+            throws IOException {
+        if (roots.size() > MAX_LAYERS)
+            throw new IllegalArgumentException("Too many stage directories: " + roots.size());
+        Path[] dirs = new Path[roots.size()];
+        boolean exists = false;
+        for (int layer = 0; layer < dirs.length; layer++)
+            if (Files.isDirectory(roots.get(layer))) {
+                dirs[layer] = roots.get(layer);
+                exists = true;
+            }
+        if (!exists && (virtual == null || virtual.isEmpty()))
+            return new StageManifest(roots, false).complete();
+        StageManifest result = new StageManifest(roots, fileKeys);
+        Walker walker = new Walker(result, followLinks, virtual == null ? 0 : virtual.getModified());
+        walker.walkRoot(dirs, virtual == null ? null : VirtualNode.of(virtual));
+        return result.complete();
+    }
+
+    private int add(int parent, String name, Type type, BasicFileAttributes attrs, String linkTarget) {
+        int index = add(
+                parent, name, type, type == Type.FILE ? attrs.size() : 0L,
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), linkTarget
+        );
+        if (fileKeys != null && type == Type.FILE)
+            fileKeys[index] = attrs.fileKey();
+        return index;
+    }
+
+    /**
+     * Add an entry
+     * @param parent index of a parent directory entry, or -1 for a root
+     * @param name last component of an entry name
+     * @param type entry type
+     * @param size size of a regular file
+     * @param modified modification time in nanoseconds
+     * @param linkTarget target of a symbolic link, or null
+     * @return index of an added entry
+     */
+    int add(int parent, String name, Type type, long size, long modified, String linkTarget) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            modes = Arrays.copyOf(modes, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            this.modified = Arrays.copyOf(this.modified, capacity);
+            if (fileKeys != null)
+                fileKeys = Arrays.copyOf(fileKeys, capacity);
+            if (layers != null)
+                layers = Arrays.copyOf(layers, capacity);
+            if (linkTargets != null)
+                linkTargets = Arrays.copyOf(linkTargets, capacity);
+            if (sources != null)
+                sources = Arrays.copyOf(sources, capacity);
+        }
+        int index = count++;
+        String shared = components.putIfAbsent(name, name);
+        parents[index] = parent;
+        names[index] = shared == null ? name : shared;
+        types[index] = (byte) type.ordinal();
+        modes[index] = type == Type.DIRECTORY ? TarArchiveEntry.DEFAULT_DIR_MODE : TarArchiveEntry.DEFAULT_FILE_MODE;
+        sizes[index] = size;
+        this.modified[index] = modified;
+        if (linkTarget != null) {
+            if (linkTargets == null)
+                linkTargets = new String[parents.length];
+            linkTargets[index] = linkTarget;
+        }
+        return index;
+    }
+
+    private void setSource(int index, Path source) {
+        if (sources == null)
+            sources = new Path[parents.length];
+        sources[index] = source;
+    }
+
+    /**
+     * Release memory, used while entries are added
+     * @return this manifest
+     */
+    StageManifest complete() {
+        components = null;
+        parents = Arrays.copyOf(parents, count);
+        names = Arrays.copyOf(names, count);
+        types = Arrays.copyOf(types, count);
+        modes = Arrays.copyOf(modes, count);
+        sizes = Arrays.copyOf(sizes, count);
+        modified = Arrays.copyOf(modified, count);
+        if (fileKeys != null)
+            fileKeys = Arrays.copyOf(fileKeys, count);
+        if (layers != null)
+            layers = Arrays.copyOf(layers, count);
+        if (linkTargets != null)
+            linkTargets = Arrays.copyOf(linkTargets, count);
+        if (sources != null)
+            sources = Arrays.copyOf(sources, count);
+        return this;
+    }
+
+    /**
+     * @return stage directories in an order of a precedence, including missing ones
+     */
+    public List<Path> getRoots() {
+        return Collections.unmodifiableList(roots);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return total size of regular files
+     */
+    public long getFilesSize() {
+        long size = 0;
+        for (int i = 0; i < count; i++)
+            size += sizes[i];
+        return size;
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        // entries are added by a walk, so a directory precedes its content, which follows it without gaps
+        return new Iterator<Entry>() {
+            private final Deque<Entry> directories = new ArrayDeque<>();
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Entry next() {
+                if (next >= count)
+                    throw new NoSuchElementException();
+                int index = next++;
+                while (!directories.isEmpty() && directories.peek().index != parents[index])
+                    directories.pop();
+                Entry entry = new Entry(
+                        index, directories.isEmpty() ? names[index] : directories.peek().name + '/' + names[index]
+                );
+                if (types[index] == Type.DIRECTORY.ordinal())
+                    directories.push(entry);
+                return entry;
+            }
+        };
+    }
+
+    public enum Type {
+        DIRECTORY, FILE, SYMLINK
+    }
+
+    /**
+     * View of a manifest entry
+     */
+    public class Entry {
+        private final int index;
+        private final String name;
+
+        private Entry(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+
+        public Type getType() {
+            return TYPES[types[index]];
+        }
+
+        /**
+         * @return staged file, as reached by a walk within a stage directory it was found in,
+         * an original location of a virtual file, or null for a directory, containing only virtual files
+         */
+        public Path getFile() {
+            if (sources != null && sources[index] != null)
+                return sources[index];
+            if (virtualDirectories.get(index))
+                return null;
+            return roots.get(layers == null ? 0 : layers[index] & 0xFF).resolve(name);
+        }
+
+        /**
+         * @return path relative to a stage directory, separated by slashes
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return last component of a name
+         */
+        public String getFileName() {
+            return names[index];
+        }
+
+        /**
+         * @return size of a regular file, zero for other entries
+         */
+        public long getSize() {
+            return sizes[index];
+        }
+
+        /**
+         * @return modification time in milliseconds
+         */
+        public long getModified() {
+            return TimeUnit.NANOSECONDS.toMillis(modified[index]);
+        }
+
+        /**
+         * @return modification time in nanoseconds
+         */
+        public long getModifiedNanos() {
+            return modified[index];
+        }
+
+        /**
+         * @return file key of a regular file, or null if it is not available or was not kept
+         */
+        public Object getFileKey() {
+            return fileKeys == null ? null : fileKeys[index];
+        }
+
+        /**
+         * @return target of a symbolic link, or null for other entries
+         */
+        public String getLinkTarget() {
+            return linkTargets == null ? null : linkTargets[index];
+        }
+
+        /**
+         * @return packaged tar mode, including a type
+         */
+        public int getMode() {
+            return modes[index];
+        }
+
+        public void setMode(int mode) {
+            modes[index] = mode;
+        }
+
+        /**
+         * @return md5 checksum of a regular file, or null if it was not computed
+         */
+        public byte[] getChecksum() {
+            if (checksummed == null || !checksummed.get(index))
+                return null;
+            return Arrays.copyOfRange(checksums, index * CHECKSUM_LENGTH, (index + 1) * CHECKSUM_LENGTH);
+        }
+
+        /**
+         * Record md5 checksum of a regular file
+         * @param checksum md5 checksum
+         */
+        public void setChecksum(byte[] checksum) {
+            if (checksum.length != CHECKSUM_LENGTH)
+                throw new IllegalArgumentException("Not a md5 checksum");
+            if (checksums == null) {
+                checksums = new byte[count * CHECKSUM_LENGTH];
+                checksummed = new BitSet(count);
+            }
+            System.arraycopy(checksum, 0, checksums, index * CHECKSUM_LENGTH, CHECKSUM_LENGTH);
+            checksummed.set(index);
+        }
+    }
+
+    private static class VirtualNode {
+        private final Map<String, VirtualNode> children = new TreeMap<>();
+        private Path file;
+
+        private static VirtualNode of(VirtualStage virtual) {
+            VirtualNode root = new VirtualNode();
+            for (Map.Entry<String, Path> e: virtual.getFiles().entrySet()) {
+                VirtualNode node = root;
+                for (String component: e.getKey().split("/"))
+                    node = node.children.computeIfAbsent(component, c -> new VirtualNode());
+                node.file = e.getValue();
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Walker of layered stage directories, merged with a virtual stage, visiting directory entries in a name order
+     */
+    private static class Walker {
+        private final StageManifest result;
+        private final boolean followLinks;
+        private final long virtualModified;
+        private final Deque<Object> ancestors = new ArrayDeque<>();
+
+        private Walker(StageManifest result, boolean followLinks, long virtualModified) {
+            this.result = result;
+            this.followLinks = followLinks;
+            this.virtualModified = virtualModified;
+        }
+
+        private BasicFileAttributes readAttributes(Path file) throws IOException {
+            if (!followLinks)
+                return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            try {
+                return Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // dangling link is visited as is
+                return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+
+        private void checkLoop(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (!followLinks)
+                return;
+            Object key = attrs.fileKey();
+            for (Object ancestor: ancestors)
+                if (key != null ? key.equals(ancestor) : ancestor instanceof Path && Files.isSameFile(dir, (Path) ancestor))
+                    throw new FileSystemLoopException(dir.toString());
+        }
+
+        private void walkRoot(Path[] roots, VirtualNode virtual) throws IOException {
+            for (Path root: roots)
+                if (root != null) {
+                    BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class);
+                    ancestors.push(attrs.fileKey() != null ? attrs.fileKey() : root);
+                }
+            walk(-1, roots, virtual);
+        }
+
+        /**
+         * Visit merged content of directories of the same name
+         * @param parent index of a directory entry, -1 for a root
+         * @param dirs directories of the same name by their layers, null where a layer does not contain it
+         * @param virtual virtual files of a directory, or null
+         */
+        private void walk(int parent, Path[] dirs, VirtualNode virtual) throws IOException {
+            // first layer, containing a name, wins
+            Map<String, Integer> children = new TreeMap<>();
+            for (int layer = 0; layer < dirs.length; layer++) {
+                if (dirs[layer] == null)
+                    continue;
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dirs[layer])) {
+                    for (Path child: ds)
+                        children.putIfAbsent(child.getFileName().toString(), layer);
+                }
+            }
+            if (virtual != null)
+                for (String name: virtual.children.keySet())
+                    children.putIfAbsent(name, -1);
+            for (Map.Entry<String, Integer> child: children.entrySet()) {
+                VirtualNode node = virtual == null ? null : virtual.children.get(child.getKey());
+                int layer = child.getValue();
+                if (layer >= 0)
+                    visit(parent, child.getKey(), dirs, layer, node);
+                else if (node.file != null)
+                    visitVirtual(parent, child.getKey(), node.file);
+                else {
+                    int dir = result.add(parent, child.getKey(), Type.DIRECTORY, 0L, virtualModified, null);
+                    result.virtualDirectories.set(dir);
+                    walk(dir, new Path[dirs.length], node);
+                }
+            }
+        }
+
+        private void visit(int parent, String name, Path[] dirs, int layer, VirtualNode virtual) throws IOException {
+            Path file = dirs[layer].resolve(name);
+            BasicFileAttributes attrs = readAttributes(file);
+            if (attrs.isSymbolicLink()) {
+                setLayer(result.add(parent, name, Type.SYMLINK, attrs, Files.readSymbolicLink(file).toString()), layer);
+            } else if (!attrs.isDirectory()) {
+                // staged file takes precedence over files of lower layers and a virtual one
+                setLayer(result.add(parent, name, Type.FILE, attrs, null), layer);
+            } else {
+                Path[] merged = new Path[dirs.length];
+                merged[layer] = file;
+                checkLoop(file, attrs);
+                ancestors.push(attrs.fileKey() != null ? attrs.fileKey() : file);
+                int pushed = 1;
+                try {
+                    // directories of lower layers are merged, while their files of other types are hidden
+                    for (int lower = layer + 1; lower < dirs.length; lower++) {
+                        if (dirs[lower] == null)
+                            continue;
+                        Path dir = dirs[lower].resolve(name);
+                        BasicFileAttributes lowerAttrs;
+                        try {
+                            lowerAttrs = readAttributes(dir);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        if (!lowerAttrs.isDirectory() || isMerged(dir, lowerAttrs, pushed))
+                            continue;
+                        checkLoop(dir, lowerAttrs);
+                        ancestors.push(lowerAttrs.fileKey() != null ? lowerAttrs.fileKey() : dir);
+                        pushed++;
+                        merged[lower] = dir;
+                    }
+                    int index = result.add(parent, name, Type.DIRECTORY, attrs, null);
+                    setLayer(index, layer);
+                    walk(index, merged, virtual != null && virtual.file == null ? virtual : null);
+                } finally {
+                    for (; pushed > 0; pushed--)
+                        ancestors.pop();
+                }
+            }
+        }
+
+        private boolean isMerged(Path dir, BasicFileAttributes attrs, int merged) throws IOException {
+            // the same directory may be reached through several layers
+            Object key = attrs.fileKey();
+            Iterator<Object> ancestor = ancestors.iterator();
+            for (int i = 0; i < merged; i++) {
+                Object a = ancestor.next();
+                if (key != null ? key.equals(a) : a instanceof Path && Files.isSameFile(dir, (Path) a))
+                    return true;
+            }
+            return false;
+        }
+
+        private void setLayer(int index, int layer) {
+            if (result.layers != null)
+                result.layers[index] = (byte) layer;
+        }
+
+        private void visitVirtual(int parent, String name, Path source) throws IOException {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(source, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                throw new IOException("Virtually staged file " + name + " is missing: " + source, e);
+            }
+            if (!attrs.isRegularFile())
+                throw new IOException("Virtually staged file " + name + " is not a regular file: " + source);
+            result.setSource(result.add(parent, name, Type.FILE, attrs, null), source);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package io.solit.plugin.maven.deb.populate;
 
+import io.solit.plugin.maven.deb.FileTaskExecutor;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
@@ -25,6 +27,9 @@ import java.nio.file.attribute.BasicFileAttributes;
  *     Files are not overridden during this operation
  * <p>
  *     Symbolic links are copied as is, without following them.
+ * <p>
+ *     In an overlay mode nothing is copied, and package goal packages source directories
+ *     from their locations instead
  * @author yaga
  * @since 16.03.18
  */
@@ -55,7 +60,25 @@ public class DataMojo extends AbstractMojo {
     @Parameter(defaultValue = "${project.build.directory}/control")
     private File controlDir;
 
+    /**
+     * Number of threads to copy files with. Directories are created before files are copied into them.
+     * On java 21 and later files are copied on virtual threads, at most this number at a time
+     */
+    @Parameter(property = "deb.copyThreads", defaultValue = "1")
+    private int copyThreads = 1;
+
+    /**
+     * If set to true, source directories are not copied, but are packaged from their locations
+     * by a package goal, which should be configured the same way
+     */
+    @Parameter(property = "deb.overlay")
+    private boolean overlay;
+
     public void copyDirectory(File source, File destination) throws IOException {
+        copyDirectory(source, destination, null);
+    }
+
+    private void copyDirectory(File source, File destination, FileTaskExecutor executor) throws IOException {
         Path src = source.toPath(), dst = destination.toPath();
         if (!Files.isDirectory(src))
             return;
@@ -75,17 +98,30 @@ public class DataMojo extends AbstractMojo {
                 Path target = dst.resolve(src.relativize(file));
                 if (Files.exists(target))
                     return FileVisitResult.CONTINUE;
-                Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                if (executor == null)
+                    Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                else
+                    executor.run(() -> Files.copy(
+                            file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS
+                    ));
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
     @Override
-    public void execute() throws MojoExecutionException {
-        try {
-            copyDirectory(controlSourceDir, controlDir);
-            copyDirectory(dataSourceDir, stageDir);
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (copyThreads < 1)
+            throw new MojoFailureException("Number of copy threads should be positive: " + copyThreads);
+        if (overlay) {
+            getLog().info("Source directories are packaged from their locations in an overlay mode, and are not copied");
+            return;
+        }
+        try (FileTaskExecutor executor = copyThreads > 1 ? new FileTaskExecutor("deb-copy-", copyThreads) : null) {
+            copyDirectory(controlSourceDir, controlDir, executor);
+            copyDirectory(dataSourceDir, stageDir, executor);
+            if (executor != null)
+                executor.await();
         } catch (IOException e) {
             throw new MojoExecutionException("Exception while coping directory", e);
         }
@@ -0,0 +1,170 @@
+package io.solit.plugin.maven.deb.populate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rewrites jar files with uncompressed (stored) entries, fixed modification time and entries ordered by name.
+ * <p>
+ *     Deflated entries look like random data to a package compressor, while stored ones let xz or zstd
+ *     find redundancy across all jars of a package, e.g. common class and package names. Manifest
+ *     is kept first, so the result is still readable by a <code>JarInputStream</code>. Entry content
+ *     is not changed. Signed jars are copied as is, as their signature files have to follow a manifest,
+ *     and jars, which are not valid zip files, are copied as is as well.
+ * @author yaga
+ * @since 16.10.26
+ */
+public class JarNormalizer {
+    private static final String MANIFEST_DIR = "META-INF/", MANIFEST = MANIFEST_DIR + "MANIFEST.MF",
+            SIGNATURE_EXTENSION = ".SF";
+    /**
+     * Entry time, the same in any time zone, as zip stores local date and time
+     */
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+    private static final Comparator<ZipEntry> ORDER = Comparator
+            .comparingInt(JarNormalizer::rank)
+            .thenComparing(ZipEntry::getName);
+    private long sourceSize, targetSize;
+    private int jars;
+
+    /**
+     * Write normalized copy of a jar file, or copy a jar as is, if it is signed or is not a valid zip file.
+     * May be called by several threads at the same time
+     * <p>
+     *     Target is written to a temporary file first and moved in place, when completed
+     * @param source jar file
+     * @param target file to write
+     * @return true if a jar is normalized, false if it is copied as is
+     * @throws IOException if unable to read source or write target
+     */
+    public boolean normalize(Path source, Path target) throws IOException {
+        byte[] buffer = new byte[0x10000];
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (ZipFile zip = new ZipFile(source.toFile())) {
+                List<ZipEntry> entries = entries(zip);
+                if (entries.stream().anyMatch(JarNormalizer::isSignature)) {
+                    Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                    return false;
+                }
+                write(zip, entries, temp, buffer);
+            } catch (ZipException e) {
+                Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                return false;
+            }
+            Files.setLastModifiedTime(temp, Files.getLastModifiedTime(source));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        long sourceSize = Files.size(source), targetSize = Files.size(target);
+        synchronized (this) {
+            this.jars++;
+            this.sourceSize += sourceSize;
+            this.targetSize += targetSize;
+        }
+        return true;
+    }
+
+    private static void write(ZipFile zip, List<ZipEntry> entries, Path target, byte[] buffer) throws IOException {
+        try (ZipOutputStream os = new ZipOutputStream(Files.newOutputStream(target))) {
+            os.setMethod(ZipOutputStream.STORED);
+            for (ZipEntry entry: entries) {
+                ZipEntry stored = new ZipEntry(entry.getName());
+                stored.setTime(ENTRY_TIME);
+                stored.setMethod(ZipEntry.STORED);
+                long size = entry.getSize();
+                long crc = entry.getCrc();
+                if (size < 0 || crc < 0) {
+                    CRC32 checksum = new CRC32();
+                    size = copy(zip, entry, buffer, checksum, null);
+                    crc = checksum.getValue();
+                }
+                stored.setSize(size);
+                stored.setCompressedSize(size);
+                stored.setCrc(crc);
+                os.putNextEntry(stored);
+                copy(zip, entry, buffer, null, os);
+                os.closeEntry();
+            }
+        }
+    }
+
+    private static boolean isSignature(ZipEntry entry) {
+        String name = entry.getName().toUpperCase(Locale.ROOT);
+        return name.startsWith(MANIFEST_DIR) && name.indexOf('/', MANIFEST_DIR.length()) < 0
+                && name.endsWith(SIGNATURE_EXTENSION);
+    }
+
+    private static int rank(ZipEntry entry) {
+        if (entry.getName().equalsIgnoreCase(MANIFEST_DIR))
+            return 0;
+        return entry.getName().equalsIgnoreCase(MANIFEST) ? 1 : 2;
+    }
+
+    private static List<ZipEntry> entries(ZipFile zip) {
+        List<ZipEntry> result = new ArrayList<>(zip.size());
+        Set<String> names = new HashSet<>();
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+            ZipEntry entry = e.nextElement();
+            if (names.add(entry.getName()))
+                result.add(entry);
+        }
+        result.sort(ORDER);
+        return result;
+    }
+
+    private static long copy(ZipFile zip, ZipEntry entry, byte[] buffer, CRC32 checksum, OutputStream os)
+            throws IOException {
+        long size = 0;
+        try (InputStream is = zip.getInputStream(entry)) {
+            for (int count = is.read(buffer); count >= 0; count = is.read(buffer)) {
+                if (checksum != null)
+                    checksum.update(buffer, 0, count);
+                if (os != null)
+                    os.write(buffer, 0, count);
+                size += count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return number of normalized jars
+     */
+    public synchronized int getJars() {
+        return jars;
+    }
+
+    /**
+     * @return total size of source jars
+     */
+    public synchronized long getSourceSize() {
+        return sourceSize;
+    }
+
+    /**
+     * @return total size of normalized jars
+     */
+    public synchronized long getTargetSize() {
+        return targetSize;
+    }
+}
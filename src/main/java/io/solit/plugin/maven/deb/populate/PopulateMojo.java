@@ -1,10 +1,13 @@
 package io.solit.plugin.maven.deb.populate;
 
+import io.solit.plugin.maven.deb.FileTaskExecutor;
+import io.solit.plugin.maven.deb.VirtualStage;
 import io.solit.plugin.maven.deb.dependencies.AbstractDependencyMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
 import java.io.File;
@@ -12,9 +15,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- * Copies filtered project runtime dependencies into a specified dir
+ * Copies filtered project runtime dependencies into a specified dir, or records their locations
+ * in a virtual stage, so that they are packaged straight from a local repository
  * @author yaga
  * @since 24.01.18
  */
@@ -24,10 +30,40 @@ import java.nio.file.StandardCopyOption;
         requiresDependencyResolution = ResolutionScope.COMPILE_PLUS_RUNTIME,
         defaultPhase = LifecyclePhase.PREPARE_PACKAGE
 )
-public class PopulateMojo extends AbstractDependencyMojo<Void> {
+public class PopulateMojo extends AbstractDependencyMojo<JarNormalizer> {
+    private static final String JAR_EXTENSION = ".jar";
+
+    /**
+     * Rewrite copied jars with uncompressed entries, fixed modification time and entries ordered by name,
+     * so that a package compressor could find redundancy across jars. Package becomes smaller, especially with xz,
+     * but installed jars are larger. Signed jars, and jars which are not valid zip files, are copied as is
+     */
+    @Parameter(property = "deb.normalizeJars", defaultValue = "false")
+    private boolean normalizeJars;
+
+    /**
+     * Number of threads to copy dependencies with. On java 21 and later dependencies are copied
+     * on virtual threads, at most this number at a time
+     */
+    @Parameter(property = "deb.copyThreads", defaultValue = "1")
+    private int copyThreads = 1;
+
+    /**
+     * Do not copy dependencies to a stage dir, but record their locations in <code>${stageDir}.virtual</code>
+     * file, so that <code>package</code> goal reads them straight from a local repository, if its virtual staging
+     * is set as well. Dependency dir should be inside a stage dir. Ignored if jars are normalized
+     */
+    @Parameter(property = "deb.virtualStaging", defaultValue = "false")
+    private boolean virtualStaging;
+
+    private FileTaskExecutor executor;
+
+    private VirtualStage virtual;
+
+    private final Set<Path> targets = new HashSet<>();
 
     @Override
-    protected void processDependency(DependencyArtifact node, Void nothing, File dependencyDir, boolean root) throws MojoExecutionException {
+    protected void processDependency(DependencyArtifact node, JarNormalizer normalizer, File dependencyDir, boolean root) throws MojoExecutionException {
         try {
             File src = node.getArtifact().getFile();
             if (src == null)
@@ -35,22 +71,77 @@ public class PopulateMojo extends AbstractDependencyMojo<Void> {
                     return;
                 else
                     throw new MojoExecutionException("Unresolved dependency: " + node.getArtifact().toString());
+            Path target = new File(dependencyDir, src.getName()).toPath();
+            // several dependencies may have the same file name, only the first one is copied
+            if (!targets.add(target) || Files.exists(target))
+                return;
+            if (virtual != null) {
+                Path stage = stageDir.toPath().toAbsolutePath().normalize();
+                String name = stage.relativize(target.toAbsolutePath().normalize()).toString();
+                virtual.add(name.replace(File.separatorChar, '/'), src.toPath());
+                return;
+            }
             if (!dependencyDir.isDirectory() && !dependencyDir.mkdirs())
                 throw new MojoExecutionException("Unable to create directory " + dependencyDir.toString());
-            Path target = new File(dependencyDir, src.getName()).toPath();
-            if (Files.exists(target))
+            if (executor == null)
+                copy(src, target, normalizer, node);
+            else
+                executor.run(() -> copy(src, target, normalizer, node));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    private void copy(File src, Path target, JarNormalizer normalizer, DependencyArtifact node) throws IOException {
+        try {
+            if (normalizer != null && src.getName().endsWith(JAR_EXTENSION)) {
+                if (!normalizer.normalize(src.toPath(), target))
+                    getLog().info("Copied " + src + " as is, as it is signed or is not a valid jar");
                 return;
+            }
             Files.copy(
                     src.toPath(), target, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING
             );
         } catch (IOException e) {
-            throw new MojoExecutionException("Unable to copy artifact " + node.getArtifact().toString(), e);
+            throw new IOException("Unable to copy artifact " + node.getArtifact().toString(), e);
         }
     }
 
+    private VirtualStage createVirtualStage() throws MojoExecutionException, MojoFailureException {
+        Path stage = stageDir.toPath().toAbsolutePath().normalize();
+        if (!getDependencyDirectory().toPath().toAbsolutePath().normalize().startsWith(stage))
+            throw new MojoFailureException("Virtual staging requires dependency dir inside a stage dir " + stage);
+        return new VirtualStage();
+    }
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
-        traverseDependencies(null);
+        if (copyThreads < 1)
+            throw new MojoFailureException("Number of copy threads should be positive: " + copyThreads);
+        JarNormalizer normalizer = normalizeJars ? new JarNormalizer() : null;
+        if (virtualStaging && normalizeJars)
+            getLog().warn("Normalized jars are copied to a stage dir, virtual staging is ignored");
+        else if (virtualStaging)
+            virtual = createVirtualStage();
+        try (FileTaskExecutor executor = copyThreads > 1 ? new FileTaskExecutor("deb-copy-", copyThreads) : null) {
+            this.executor = executor;
+            traverseDependencies(normalizer);
+            if (executor != null)
+                executor.await();
+            // stage of a previous build is deleted, if dependencies are copied
+            (virtual == null ? new VirtualStage() : virtual).save(VirtualStage.location(stageDir));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            executor = null;
+            virtual = null;
+            targets.clear();
+        }
+        if (normalizer != null && normalizer.getJars() > 0)
+            getLog().info(String.format(
+                    "Normalized %d jars: %d bytes compressed, %d bytes stored",
+                    normalizer.getJars(), normalizer.getSourceSize(), normalizer.getTargetSize()
+            ));
     }
 
 }
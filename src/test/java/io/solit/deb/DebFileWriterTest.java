@@ -1,20 +1,39 @@
 package io.solit.deb;
 
+import com.github.luben.zstd.ZstdInputStream;
 import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
 import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.jupiter.api.Test;
+import org.tukaani.xz.XZInputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /**
  * @author yaga
@@ -184,4 +203,703 @@ public class DebFileWriterTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSpooledData() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File spool = File.createTempFile("test", ".data");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.spoolData(spool)) {
+                    TarArchiveEntry archiveEntry = new TarArchiveEntry("/etc/some-data", true);
+                    archiveEntry.setSize(3);
+                    tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                    try {
+                        tarArchiveOutputStream.write("bar".getBytes(StandardCharsets.ISO_8859_1));
+                    } finally {
+                        tarArchiveOutputStream.closeArchiveEntry();
+                    }
+                }
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openControl()) {
+                    TarArchiveEntry control = new TarArchiveEntry("control");
+                    control.setSize(3);
+                    tarArchiveOutputStream.putArchiveEntry(control);
+                    try {
+                        tarArchiveOutputStream.write("foo".getBytes(StandardCharsets.ISO_8859_1));
+                    } finally {
+                        tarArchiveOutputStream.closeArchiveEntry();
+                    }
+                }
+                assertThrows(IOException.class, debFileWriter::openData);
+            }
+            assertFalse(spool.exists());
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                assertEquals("debian-binary", ar.getNextArEntry().getName());
+                assertEquals("control.tar.gz", ar.getNextArEntry().getName());
+                ArArchiveEntry data = ar.getNextArEntry();
+                assertEquals("data.tar.gz", data.getName());
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(new GZIPInputStream(ar));
+                TarArchiveEntry nextTarEntry = dataArchive.getNextTarEntry();
+                assertEquals("/etc/some-data", nextTarEntry.getName());
+                byte[] buffer = new byte[3];
+                assertEquals(3, dataArchive.read(buffer));
+                assertEquals("bar", new String(buffer, StandardCharsets.ISO_8859_1));
+                assertNull(ar.getNextArEntry());
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (spool.exists() && !spool.delete())
+                spool.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testSpoolAfterControl() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File spool = File.createTempFile("test", ".data");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.openControl().close();
+                assertThrows(IOException.class, () -> debFileWriter.spoolData(spool));
+            } catch (IOException e) {
+                // do nothing
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (spool.exists() && !spool.delete())
+                spool.deleteOnExit();
+        }
+    }
+
+    private void testCompression(Compression compression, int threads) throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setCompression(compression);
+                debFileWriter.setCompressionThreads(threads);
+                debFileWriter.openControl().close();
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData()) {
+                    TarArchiveEntry archiveEntry = new TarArchiveEntry("/etc/some-data", true);
+                    archiveEntry.setSize(3);
+                    tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                    try {
+                        tarArchiveOutputStream.write("bar".getBytes(StandardCharsets.ISO_8859_1));
+                    } finally {
+                        tarArchiveOutputStream.closeArchiveEntry();
+                    }
+                }
+            }
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                assertEquals("debian-binary", ar.getNextArEntry().getName());
+                assertEquals("control.tar" + compression.getExtension(), ar.getNextArEntry().getName());
+                assertEquals("data.tar" + compression.getExtension(), ar.getNextArEntry().getName());
+                InputStream is;
+                switch (compression) {
+                    case gzip: is = new GZIPInputStream(ar); break;
+                    case xz: is = new XZInputStream(ar); break;
+                    case zstd: is = new ZstdInputStream(ar); break;
+                    default: is = ar;
+                }
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(is);
+                TarArchiveEntry nextTarEntry = dataArchive.getNextTarEntry();
+                assertEquals("/etc/some-data", nextTarEntry.getName());
+                byte[] buffer = new byte[3];
+                assertEquals(3, dataArchive.read(buffer));
+                assertEquals("bar", new String(buffer, StandardCharsets.ISO_8859_1));
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testCompressions() throws IOException {
+        for (Compression compression: Compression.values()) {
+            testCompression(compression, 1);
+            testCompression(compression, 2);
+        }
+    }
+
+    private void testTransferEntry(Compression compression, long mappedThreshold) throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File content = File.createTempFile("test", ".content");
+        try {
+            byte[] bytes = new byte[1500];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) i;
+            Files.write(content.toPath(), bytes);
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setCompression(compression);
+                debFileWriter.setMappedThreshold(mappedThreshold);
+                debFileWriter.openControl().close();
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData();
+                    FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                    for (int size: new int[] {bytes.length, 3}) {
+                        TarArchiveEntry archiveEntry = new TarArchiveEntry("/etc/data-" + size, true);
+                        archiveEntry.setSize(size);
+                        tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                        channel.position(0);
+                        MessageDigest digest = MessageDigest.getInstance("MD5");
+                        debFileWriter.transferEntry(tarArchiveOutputStream, channel, size, digest);
+                        assertEquals(size, channel.position());
+                        MessageDigest expected = MessageDigest.getInstance("MD5");
+                        expected.update(bytes, 0, size);
+                        assertArrayEquals(expected.digest(), digest.digest());
+                        tarArchiveOutputStream.closeArchiveEntry();
+                    }
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+            }
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                assertEquals("data.tar" + compression.getExtension(), ar.getNextArEntry().getName());
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(
+                        compression == Compression.none ? ar : new GZIPInputStream(ar)
+                );
+                for (int size: new int[] {bytes.length, 3}) {
+                    TarArchiveEntry nextTarEntry = dataArchive.getNextTarEntry();
+                    assertEquals("/etc/data-" + size, nextTarEntry.getName());
+                    byte[] buffer = new byte[size];
+                    assertEquals(size, dataArchive.read(buffer));
+                    for (int i = 0; i < size; i++)
+                        assertEquals(bytes[i], buffer[i]);
+                }
+                assertNull(dataArchive.getNextTarEntry());
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testTransferEntry() throws IOException {
+        for (long mappedThreshold: new long[] {0, DebFileWriter.DEFAULT_MAPPED_THRESHOLD}) {
+            testTransferEntry(Compression.none, mappedThreshold);
+            testTransferEntry(Compression.gzip, mappedThreshold);
+        }
+    }
+
+    private byte[] writeReproducible(Instant modificationTime, long fileModified) throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        try {
+            assertTrue(f.setLastModified(fileModified));
+            try (DebFileWriter debFileWriter = new DebFileWriter(f, modificationTime)) {
+                debFileWriter.setCompressionThreads(2);
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openControl()) {
+                    TarArchiveEntry control = new TarArchiveEntry("control");
+                    control.setModTime(modificationTime.toEpochMilli());
+                    control.setSize(3);
+                    tarArchiveOutputStream.putArchiveEntry(control);
+                    tarArchiveOutputStream.write("foo".getBytes(StandardCharsets.ISO_8859_1));
+                    tarArchiveOutputStream.closeArchiveEntry();
+                }
+                debFileWriter.openData().close();
+            }
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testReproducible() throws IOException {
+        Instant modificationTime = Instant.ofEpochSecond(1_500_000_000L);
+        // neither a target file nor a clock affects content, as every member is modified at a given time
+        byte[] first = writeReproducible(modificationTime, 1_600_000_000_000L);
+        assertArrayEquals(first, writeReproducible(modificationTime, 1_700_000_000_000L));
+        try (ArArchiveInputStream ar = new ArArchiveInputStream(new ByteArrayInputStream(first))) {
+            for (ArArchiveEntry e = ar.getNextArEntry(); e != null; e = ar.getNextArEntry())
+                assertEquals(modificationTime.getEpochSecond(), e.getLastModified(), e.getName());
+        }
+    }
+
+    private byte[] writeSegmented(Path content, Path segment, boolean splice) throws IOException {
+        return writeSegmented(content, segment, splice, true);
+    }
+
+    private byte[] writeSegmented(Path content, Path segment, boolean splice, boolean valid) throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f, Instant.ofEpochSecond(1_500_000_000L))) {
+                debFileWriter.setSegmentedData(true);
+                debFileWriter.openControl().close();
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData()) {
+                    assertTrue(debFileWriter.isDataSegmented());
+                    TarArchiveEntry archiveEntry = new TarArchiveEntry("/etc/small", true);
+                    archiveEntry.setModTime(1_500_000_000_000L);
+                    archiveEntry.setSize(3);
+                    tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                    tarArchiveOutputStream.write("bar".getBytes(StandardCharsets.ISO_8859_1));
+                    tarArchiveOutputStream.closeArchiveEntry();
+                    TarArchiveEntry segmentEntry = new TarArchiveEntry("/etc/large", true);
+                    // written archives are compared, so they may not depend on a clock
+                    segmentEntry.setModTime(1_500_000_000_000L);
+                    segmentEntry.setSize(Files.size(content));
+                    boolean spliced = false;
+                    if (splice)
+                        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                            spliced = debFileWriter.spliceSegment(tarArchiveOutputStream, segmentEntry, channel);
+                            assertEquals(valid, spliced);
+                        }
+                    if (!spliced)
+                        try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ);
+                             OutputStream recorder = splice ? null : Files.newOutputStream(segment)) {
+                            debFileWriter.writeSegment(tarArchiveOutputStream, segmentEntry, channel, recorder);
+                        }
+                }
+            }
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testSegmentedData() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        File segment = File.createTempFile("test", ".segment");
+        try {
+            byte[] bytes = new byte[70000];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) (i % 251);
+            Files.write(content.toPath(), bytes);
+            byte[] written = writeSegmented(content.toPath(), segment.toPath(), false);
+            assertTrue(segment.length() > 0);
+            assertArrayEquals(written, writeSegmented(content.toPath(), segment.toPath(), true));
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new ByteArrayInputStream(written))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                assertEquals("data.tar.gz", ar.getNextArEntry().getName());
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(new GZIPInputStream(ar));
+                assertEquals("/etc/small", dataArchive.getNextTarEntry().getName());
+                TarArchiveEntry large = dataArchive.getNextTarEntry();
+                assertEquals("/etc/large", large.getName());
+                byte[] buffer = new byte[bytes.length];
+                int read = 0;
+                for (int r = dataArchive.read(buffer); r > 0; r = dataArchive.read(buffer, read, buffer.length - read))
+                    read += r;
+                assertArrayEquals(bytes, buffer);
+                assertNull(dataArchive.getNextTarEntry());
+            }
+        } finally {
+            if (!content.delete())
+                content.deleteOnExit();
+            if (!segment.delete())
+                segment.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testDamagedSegment() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        File segment = File.createTempFile("test", ".segment");
+        try {
+            byte[] bytes = new byte[70000];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) (i % 251);
+            Files.write(content.toPath(), bytes);
+            byte[] written = writeSegmented(content.toPath(), segment.toPath(), false);
+            byte[] recorded = Files.readAllBytes(segment.toPath());
+            // damaged segment is not written, and an entry is compressed again
+            byte[] damaged = recorded.clone();
+            damaged[damaged.length / 2] ^= 0x55;
+            Files.write(segment.toPath(), damaged);
+            assertArrayEquals(written, writeSegmented(content.toPath(), segment.toPath(), true, false));
+            Files.write(segment.toPath(), Arrays.copyOf(recorded, recorded.length - 1));
+            assertArrayEquals(written, writeSegmented(content.toPath(), segment.toPath(), true, false));
+            // segment of another entry content
+            Files.write(content.toPath(), Arrays.copyOf(bytes, bytes.length + 512));
+            Files.write(segment.toPath(), recorded);
+            writeSegmented(content.toPath(), segment.toPath(), true, false);
+        } finally {
+            if (!content.delete())
+                content.deleteOnExit();
+            if (!segment.delete())
+                segment.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testSegmentOfNotSegmentedData() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.openControl().close();
+                try(TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData()) {
+                    assertFalse(debFileWriter.isDataSegmented());
+                    try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                        assertThrows(IOException.class, () -> debFileWriter.spliceSegment(
+                                tarArchiveOutputStream, new TarArchiveEntry("/etc/data", true), channel
+                        ));
+                    }
+                }
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    private File createSparseFile(long size) throws IOException {
+        File content = File.createTempFile("test", ".sparse");
+        try (RandomAccessFile raf = new RandomAccessFile(content, "rw")) {
+            raf.setLength(size);
+            raf.seek(size - 1);
+            raf.write(1);
+        }
+        return content;
+    }
+
+    @Test
+    public void testMemberSizeLimit() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        // size is checked before content is read, so content file does not need to be as large
+        long size = 10_000_000_000L;
+        File content = File.createTempFile("test", ".content");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setCompression(Compression.none);
+                debFileWriter.openControl().close();
+                TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData();
+                TarArchiveEntry archiveEntry = new TarArchiveEntry("/var/lib/large", true);
+                archiveEntry.setSize(size);
+                tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                    IOException e = assertThrows(IOException.class, () -> debFileWriter.transferEntry(
+                            tarArchiveOutputStream, channel, size
+                    ));
+                    assertTrue(e.getMessage().contains("allowed by ar format"), e.getMessage());
+                }
+            } catch (IOException e) {
+                // incomplete deb file
+            }
+            assertTrue(f.length() < 1024 * 1024);
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testLargeEntry() throws IOException {
+        // writes and reads more than 8 gigabytes, enabled by -Ddeb.largeTests=true
+        assumeTrue(Boolean.getBoolean("deb.largeTests"));
+        long size = 9L * 1024 * 1024 * 1024;
+        File f = File.createTempFile("test", ".deb");
+        File content = createSparseFile(size);
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setCompressionLevel(1);
+                debFileWriter.openControl().close();
+                try (TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData();
+                     FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                    TarArchiveEntry archiveEntry = new TarArchiveEntry("/var/lib/large", true);
+                    archiveEntry.setSize(size);
+                    tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                    debFileWriter.transferEntry(tarArchiveOutputStream, channel, size);
+                    tarArchiveOutputStream.closeArchiveEntry();
+                }
+            }
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                assertEquals("data.tar.gz", ar.getNextArEntry().getName());
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(new GZIPInputStream(ar));
+                TarArchiveEntry large = dataArchive.getNextTarEntry();
+                assertEquals("/var/lib/large", large.getName());
+                assertEquals(size, large.getSize());
+                long skipped = 0;
+                for (long s = dataArchive.skip(size - 1); s > 0; s = dataArchive.skip(size - 1 - skipped))
+                    skipped += s;
+                assertEquals(size - 1, skipped);
+                assertEquals(1, dataArchive.read());
+                assertNull(dataArchive.getNextTarEntry());
+            }
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testSparseEntry() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File content = createSparseFile(3 * 1024 * 1024 + 100);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setSparseData(true);
+                debFileWriter.openControl().close();
+                try (TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData();
+                     FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                    TarArchiveEntry archiveEntry = new TarArchiveEntry("/var/lib/sparse", true);
+                    archiveEntry.setSize(content.length());
+                    tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                    debFileWriter.transferEntry(tarArchiveOutputStream, channel, content.length(), digest);
+                    tarArchiveOutputStream.closeArchiveEntry();
+                }
+            }
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(Files.readAllBytes(content.toPath())), digest.digest());
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                assertEquals("data.tar.gz", ar.getNextArEntry().getName());
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(new GZIPInputStream(ar));
+                assertEquals("/var/lib/sparse", dataArchive.getNextTarEntry().getName());
+                byte[] buffer = new byte[(int) content.length()];
+                int read = 0;
+                for (int r = dataArchive.read(buffer); r > 0; r = dataArchive.read(buffer, read, buffer.length - read))
+                    read += r;
+                assertArrayEquals(Files.readAllBytes(content.toPath()), buffer);
+                assertNull(dataArchive.getNextTarEntry());
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    private static void writeDefaultEntries(TarArchiveOutputStream archive, Path content, DebFileWriter writer)
+            throws IOException {
+        String longName = "/usr/share/" + String.join("/", Collections.nCopies(20, "directory")) + "/file";
+        for (String name: Arrays.asList("/etc/small", longName, "/var/lib/zeros", "/var/lib/random")) {
+            TarArchiveEntry entry = new TarArchiveEntry(name, true);
+            entry.setModTime(1_500_000_000_000L);
+            byte[] data = name.equals("/var/lib/zeros") ? new byte[1024 * 1024] :
+                    name.equals("/var/lib/random") ? Files.readAllBytes(content) : name.getBytes(StandardCharsets.UTF_8);
+            entry.setSize(data.length);
+            archive.putArchiveEntry(entry);
+            if (writer == null)
+                archive.write(data);
+            else
+                try (FileChannel channel = FileChannel.open(Files.write(content.resolveSibling("entry"), data))) {
+                    writer.transferEntry(archive, channel, data.length);
+                }
+            archive.closeArchiveEntry();
+        }
+    }
+
+    @Test
+    public void testDefaultData() throws IOException {
+        // without options, which need a record archive, data is written by a plain gzip stream
+        Path root = Files.createTempDirectory("test");
+        try {
+            Path content = root.resolve("content"), deb = root.resolve("test.deb");
+            byte[] random = new byte[200000];
+            new Random(5).nextBytes(random);
+            Files.write(content, random);
+            try (DebFileWriter debFileWriter = new DebFileWriter(deb.toFile())) {
+                debFileWriter.openControl().close();
+                try (TarArchiveOutputStream archive = debFileWriter.openData()) {
+                    writeDefaultEntries(archive, content, debFileWriter);
+                }
+            }
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (TarArchiveOutputStream archive = new TarArchiveOutputStream(
+                    new GZIPOutputStream(expected), StandardCharsets.UTF_8.name()
+            )) {
+                archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+                archive.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+                writeDefaultEntries(archive, content, null);
+            }
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(Files.newInputStream(deb))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                ArArchiveEntry data = ar.getNextArEntry();
+                assertEquals("data.tar.gz", data.getName());
+                byte[] actual = new byte[(int) data.getLength()];
+                for (int read = 0; read < actual.length; )
+                    read += ar.read(actual, read, actual.length - read);
+                assertArrayEquals(expected.toByteArray(), actual);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(root)) {
+                for (Path p: (Iterable<Path>) files::iterator)
+                    Files.delete(p);
+            }
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testAdaptiveCompression() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File random = File.createTempFile("test", ".random"), text = File.createTempFile("test", ".text");
+        try {
+            byte[] randomContent = new byte[100000], textContent = new byte[100000];
+            new Random(42).nextBytes(randomContent);
+            for (int i = 0; i < textContent.length; i++)
+                textContent[i] = (byte) ('a' + i % 7);
+            Files.write(random.toPath(), randomContent);
+            Files.write(text.toPath(), textContent);
+            try (DebFileWriter debFileWriter = new DebFileWriter(f)) {
+                debFileWriter.setAdaptiveCompression(5);
+                debFileWriter.openControl().close();
+                try (TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData()) {
+                    for (File content: new File[] {random, text, random})
+                        try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                            TarArchiveEntry archiveEntry = new TarArchiveEntry(content.getName(), true);
+                            archiveEntry.setSize(content.length());
+                            tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                            debFileWriter.transferEntry(tarArchiveOutputStream, channel, content.length());
+                            tarArchiveOutputStream.closeArchiveEntry();
+                        }
+                }
+                assertEquals(3, debFileWriter.getSampledEntries());
+                assertEquals(2, debFileWriter.getStoredEntries());
+                assertEquals(2L * randomContent.length, debFileWriter.getStoredSize());
+            }
+            assertTrue(f.length() < 2 * randomContent.length + 4096);
+            try (ArArchiveInputStream ar = new ArArchiveInputStream(new FileInputStream(f))) {
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                ar.getNextArEntry();
+                TarArchiveInputStream dataArchive = new TarArchiveInputStream(new GZIPInputStream(ar));
+                for (byte[] expected: new byte[][] {randomContent, textContent, randomContent}) {
+                    dataArchive.getNextTarEntry();
+                    byte[] buffer = new byte[expected.length];
+                    int read = 0;
+                    for (int r = dataArchive.read(buffer); r > 0; r = dataArchive.read(buffer, read, buffer.length - read))
+                        read += r;
+                    assertArrayEquals(expected, buffer);
+                }
+                assertNull(dataArchive.getNextTarEntry());
+            }
+        } finally {
+            for (File file: new File[] {f, random, text})
+                if (!file.delete())
+                    file.deleteOnExit();
+        }
+    }
+
+    private byte[] writePipelined(Path content, Compression compression, boolean pipelined, long mappedThreshold)
+            throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        try {
+            try (DebFileWriter debFileWriter = new DebFileWriter(f, Instant.ofEpochSecond(1_500_000_000L))) {
+                debFileWriter.setCompression(compression);
+                debFileWriter.setPipelined(pipelined);
+                debFileWriter.setMappedThreshold(mappedThreshold);
+                debFileWriter.openControl().close();
+                try (TarArchiveOutputStream tarArchiveOutputStream = debFileWriter.openData()) {
+                    for (String name: new String[] {"/usr/share/first", "/usr/share/second"})
+                        try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+                            TarArchiveEntry archiveEntry = new TarArchiveEntry(name, true);
+                            archiveEntry.setModTime(1_500_000_000_000L);
+                            archiveEntry.setSize(Files.size(content));
+                            tarArchiveOutputStream.putArchiveEntry(archiveEntry);
+                            debFileWriter.transferEntry(tarArchiveOutputStream, channel, Files.size(content));
+                            assertEquals(Files.size(content), channel.position());
+                            tarArchiveOutputStream.closeArchiveEntry();
+                        }
+                }
+            }
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testPipelined() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        try {
+            byte[] bytes = new byte[3 * 1024 * 1024 + 123];
+            new Random(42).nextBytes(bytes);
+            for (int i = 0; i < bytes.length / 2; i++)
+                bytes[i] = (byte) ('a' + i % 13);
+            Files.write(content.toPath(), bytes);
+            for (Compression compression: new Compression[] {Compression.gzip, Compression.xz})
+                for (long mappedThreshold: new long[] {0, DebFileWriter.DEFAULT_MAPPED_THRESHOLD})
+                    assertArrayEquals(
+                            writePipelined(content.toPath(), compression, false, mappedThreshold),
+                            writePipelined(content.toPath(), compression, true, mappedThreshold)
+                    );
+        } finally {
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    private void writeSinkContent(DebFileWriter debFileWriter, Path content, boolean spooled, File spool)
+            throws IOException {
+        try (TarArchiveOutputStream tarArchiveOutputStream = spooled ? debFileWriter.spoolData(spool) : null) {
+            if (!spooled)
+                debFileWriter.openControl().close();
+            try (TarArchiveOutputStream dataArchive = spooled ? tarArchiveOutputStream : debFileWriter.openData();
+                 FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+                TarArchiveEntry archiveEntry = new TarArchiveEntry("/usr/share/content", true);
+                archiveEntry.setModTime(1_500_000_000_000L);
+                archiveEntry.setSize(Files.size(content));
+                dataArchive.putArchiveEntry(archiveEntry);
+                debFileWriter.transferEntry(dataArchive, channel, Files.size(content));
+                dataArchive.closeArchiveEntry();
+            }
+        }
+        if (spooled)
+            debFileWriter.openControl().close();
+    }
+
+    @Test
+    public void testSink() throws IOException {
+        File f = File.createTempFile("test", ".deb");
+        File content = File.createTempFile("test", ".content");
+        File spool = File.createTempFile("test", ".spool");
+        try {
+            byte[] bytes = new byte[2 * 1024 * 1024 + 1];
+            new Random(42).nextBytes(bytes);
+            Files.write(content.toPath(), bytes);
+            Instant modificationTime = Instant.ofEpochSecond(1_500_000_000L);
+            for (Compression compression: new Compression[] {Compression.none, Compression.gzip})
+                for (boolean spooled: new boolean[] {false, true}) {
+                    try (DebFileWriter debFileWriter = new DebFileWriter(f, modificationTime)) {
+                        debFileWriter.setCompression(compression);
+                        writeSinkContent(debFileWriter, content.toPath(), spooled, spool);
+                    }
+                    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                    try (DebFileWriter debFileWriter = new DebFileWriter(sink, modificationTime)) {
+                        debFileWriter.setCompression(compression);
+                        debFileWriter.setSpoolDirectory(spool.getParentFile());
+                        writeSinkContent(debFileWriter, content.toPath(), spooled, spool);
+                    }
+                    assertArrayEquals(Files.readAllBytes(f.toPath()), sink.toByteArray());
+                }
+        } finally {
+            for (File file: new File[] {f, content, spool})
+                if (!file.delete())
+                    file.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testIncompleteSink() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        assertThrows(IOException.class, () -> {
+            try (DebFileWriter debFileWriter = new DebFileWriter(sink)) {
+                debFileWriter.openControl().close();
+            }
+        });
+        try (ArArchiveInputStream ar = new ArArchiveInputStream(new ByteArrayInputStream(sink.toByteArray()))) {
+            assertEquals("debian-binary", ar.getNextArEntry().getName());
+        }
+    }
+
+}
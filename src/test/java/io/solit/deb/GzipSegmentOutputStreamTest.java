@@ -0,0 +1,149 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class GzipSegmentOutputStreamTest {
+
+    private String decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[0x2000];
+            for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+                result.write(buffer, 0, read);
+        }
+        return new String(result.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new GzipSegmentOutputStream(buffer, Deflater.DEFAULT_COMPRESSION).close();
+        assertEquals("", decompress(buffer.toByteArray()));
+    }
+
+    @Test
+    public void testSplice() throws IOException {
+        File segment = File.createTempFile("test", ".segment");
+        try {
+            ByteArrayOutputStream recorded = new ByteArrayOutputStream(), first = new ByteArrayOutputStream();
+            try (GzipSegmentOutputStream os = new GzipSegmentOutputStream(first, 6)) {
+                os.write("foo".getBytes(StandardCharsets.ISO_8859_1));
+                os.startSegment(recorded);
+                os.write("bar".getBytes(StandardCharsets.ISO_8859_1));
+                os.endSegment();
+                os.write("baz".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            assertEquals("foobarbaz", decompress(first.toByteArray()));
+            assertEquals("bar", decompress(recorded.toByteArray()));
+            Files.write(segment.toPath(), recorded.toByteArray());
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            try (GzipSegmentOutputStream os = new GzipSegmentOutputStream(second, 6);
+                 FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+                assertEquals(3, GzipSegmentOutputStream.checkSegment(channel));
+                // segment, evicted after it was open, is still spliced
+                Files.delete(segment.toPath());
+                os.write("foo".getBytes(StandardCharsets.ISO_8859_1));
+                os.spliceSegment(channel);
+                os.write("skipped".getBytes(StandardCharsets.ISO_8859_1));
+                os.endSegment();
+                os.write("baz".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            assertArrayEquals(first.toByteArray(), second.toByteArray());
+        } finally {
+            if (!segment.delete())
+                segment.deleteOnExit();
+        }
+    }
+
+    private static long checkSegment(File segment, byte[] content) throws IOException {
+        Files.write(segment.toPath(), content);
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            return GzipSegmentOutputStream.checkSegment(channel);
+        }
+    }
+
+    @Test
+    public void testCheckSegment() throws IOException {
+        File segment = File.createTempFile("test", ".segment");
+        try {
+            ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+            byte[] content = new byte[100000];
+            for (int i = 0; i < content.length; i++)
+                content[i] = (byte) (i * i % 253);
+            try (GzipSegmentOutputStream os = new GzipSegmentOutputStream(new ByteArrayOutputStream(), 6)) {
+                os.startSegment(recorded);
+                os.write(content);
+                os.writeZeros(5000);
+                os.write(new byte[5000]);
+                os.write(content);
+                os.endSegment();
+            }
+            byte[] valid = recorded.toByteArray();
+            assertEquals(2 * content.length + 5000, checkSegment(segment, valid));
+            byte[] twice = Arrays.copyOf(valid, valid.length * 2);
+            System.arraycopy(valid, 0, twice, valid.length, valid.length);
+            assertEquals(4 * content.length + 10000, checkSegment(segment, twice));
+            assertEquals(0, checkSegment(segment, new byte[0]));
+            byte[] truncated = Arrays.copyOf(valid, valid.length - 3);
+            assertThrows(ZipException.class, () -> checkSegment(segment, truncated));
+            byte[] corrupted = valid.clone();
+            corrupted[corrupted.length - 6] ^= 1;
+            assertThrows(ZipException.class, () -> checkSegment(segment, corrupted));
+            byte[] damaged = valid.clone();
+            damaged[valid.length / 2] ^= 0x55;
+            assertThrows(ZipException.class, () -> checkSegment(segment, damaged));
+            assertThrows(ZipException.class, () -> checkSegment(segment, "not a segment".getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            if (!segment.delete())
+                segment.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testWriteAfterClose() throws IOException {
+        GzipSegmentOutputStream os = new GzipSegmentOutputStream(new ByteArrayOutputStream(), 6);
+        os.close();
+        assertThrows(IOException.class, () -> os.write(1));
+    }
+
+    @Test
+    public void testZeros() throws IOException {
+        int[] counts = {5, 40000, 3 * 1024 * 1024 + 7};
+        StringBuilder expected = new StringBuilder("foo");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GzipSegmentOutputStream os = new GzipSegmentOutputStream(buffer, 6)) {
+            os.write("foo".getBytes(StandardCharsets.ISO_8859_1));
+            for (int count: counts) {
+                os.writeZeros(count);
+                os.write(new byte[count + 1], 0, count); // skipped
+                os.write("barbarbar".getBytes(StandardCharsets.ISO_8859_1));
+                for (int i = 0; i < count; i++)
+                    expected.append('\0');
+                expected.append("barbarbar");
+            }
+        }
+        assertEquals(expected.toString(), decompress(buffer.toByteArray()));
+        assertTrue(buffer.size() < 16 * 1024);
+    }
+
+}
@@ -0,0 +1,59 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class MappedRegionTest {
+
+    private static byte[] read(MappedRegion region) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1000];
+        for (ByteBuffer window = region.window(); window != null; window = region.window()) {
+            int length = Math.min(chunk.length, window.remaining());
+            window.get(chunk, 0, length);
+            result.write(chunk, 0, length);
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    public void testWindows() throws IOException {
+        File file = File.createTempFile("test", ".content");
+        try {
+            byte[] content = new byte[300000];
+            for (int i = 0; i < content.length; i++)
+                content[i] = (byte) (i % 251);
+            Files.write(file.toPath(), content);
+            byte[] expected = Arrays.copyOfRange(content, 1234, 1234 + 250000);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                try (MappedRegion region = new MappedRegion(channel, 1234, 250000, 40000)) {
+                    assertArrayEquals(expected, read(region));
+                    assertNull(region.window());
+                }
+                try (MappedRegion region = new MappedRegion(channel, 0, content.length)) {
+                    assertArrayEquals(content, read(region));
+                }
+                try (MappedRegion region = new MappedRegion(channel, 0, 0)) {
+                    assertNull(region.window());
+                }
+            }
+        } finally {
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+}
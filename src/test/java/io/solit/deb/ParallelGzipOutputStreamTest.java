@@ -0,0 +1,74 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class ParallelGzipOutputStreamTest {
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[0x2000];
+            for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+                result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    private byte[] createContent(int length) {
+        Random random = new Random(42);
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++)
+            content[i] = (byte) ('a' + random.nextInt(4));
+        return content;
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(buffer, 4).close();
+        assertEquals(0, decompress(buffer.toByteArray()).length);
+    }
+
+    @Test
+    public void testSeveralBlocks() throws IOException {
+        byte[] content = createContent(ParallelGzipOutputStream.DICTIONARY_SIZE * 10 + 17);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream os = new ParallelGzipOutputStream(
+                buffer, 3, ParallelGzipOutputStream.DICTIONARY_SIZE, 6
+        )) {
+            os.write(content, 0, 100);
+            os.write(content[100]);
+            os.write(content, 101, content.length - 101);
+        }
+        assertArrayEquals(content, decompress(buffer.toByteArray()));
+        assertTrue(buffer.size() < content.length);
+    }
+
+    @Test
+    public void testWriteAfterClose() throws IOException {
+        ParallelGzipOutputStream os = new ParallelGzipOutputStream(new ByteArrayOutputStream(), 2);
+        os.close();
+        assertThrows(IOException.class, () -> os.write(1));
+    }
+
+    @Test
+    public void testInvalidBlockSize() {
+        assertThrows(IllegalArgumentException.class, () -> new ParallelGzipOutputStream(
+                new ByteArrayOutputStream(), 2, ParallelGzipOutputStream.DICTIONARY_SIZE - 1, 6
+        ));
+    }
+
+}
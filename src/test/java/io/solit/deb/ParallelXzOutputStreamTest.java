@@ -0,0 +1,54 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class ParallelXzOutputStreamTest {
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream is = new XZInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[0x2000];
+            for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+                result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        new ParallelXzOutputStream(buffer, 2, 0x10000, new LZMA2Options(1)).close();
+        assertEquals(0, decompress(buffer.toByteArray()).length);
+    }
+
+    @Test
+    public void testSeveralBlocks() throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[0x10000 * 5 + 13];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + random.nextInt(4));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ParallelXzOutputStream os = new ParallelXzOutputStream(buffer, 3, 0x10000, new LZMA2Options(1))) {
+            os.write(content, 0, 100);
+            os.write(content[100]);
+            os.write(content, 101, content.length - 101);
+        }
+        assertArrayEquals(content, decompress(buffer.toByteArray()));
+        assertTrue(buffer.size() < content.length);
+    }
+
+}
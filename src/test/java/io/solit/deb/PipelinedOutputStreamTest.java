@@ -0,0 +1,69 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PipelinedOutputStreamTest {
+
+    @Test
+    public void testContent() throws IOException {
+        byte[] content = new byte[100_000];
+        new Random(42).nextBytes(content);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (PipelinedOutputStream os = new PipelinedOutputStream(result, 1000, 3)) {
+            os.write(content[0]);
+            for (int offset = 1; offset < content.length; offset += 777)
+                os.write(content, offset, Math.min(777, content.length - offset));
+        }
+        assertArrayEquals(content, result.toByteArray());
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (PipelinedOutputStream os = new PipelinedOutputStream(result)) {
+            os.write(new byte[] {1, 2, 3});
+            os.flush();
+            assertArrayEquals(new byte[] {1, 2, 3}, result.toByteArray());
+        }
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        boolean[] closed = {false};
+        OutputStream failing = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 2500)
+                    throw new IOException("Disk full");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        PipelinedOutputStream os = new PipelinedOutputStream(failing, 1000, 2);
+        IOException e = assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 100; i++)
+                os.write(new byte[1000]);
+        });
+        assertEquals("Disk full", e.getMessage());
+        assertThrows(IOException.class, os::close);
+        assertTrue(closed[0]);
+        assertThrows(IOException.class, () -> os.write(1));
+    }
+
+}
@@ -0,0 +1,98 @@
+package io.solit.deb;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PrefetchInputStreamTest {
+
+    private byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[333];
+        for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+            result.write(buffer, 0, read);
+        return result.toByteArray();
+    }
+
+    @Test
+    public void testContent() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] bytes = new byte[100_000];
+            new Random(42).nextBytes(bytes);
+            Files.write(content.toPath(), bytes);
+            try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                for (boolean mapped: new boolean[] {false, true}) {
+                    try (InputStream is = new PrefetchInputStream(executor, channel, 10, 90_000, mapped, 1000, 4)) {
+                        assertArrayEquals(Arrays.copyOfRange(bytes, 10, 90_010), readAll(is));
+                    }
+                    assertEquals(0, channel.position());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] bytes = new byte[100_000];
+            new Random(42).nextBytes(bytes);
+            Files.write(content.toPath(), bytes);
+            try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+                try (InputStream is = new PrefetchInputStream(executor, channel, 0, bytes.length, false, 1000, 2)) {
+                    assertEquals(bytes[0] & 0xff, is.read());
+                }
+                // executor is released by a closed stream
+                try (InputStream is = new PrefetchInputStream(executor, channel, 0, bytes.length, false, 1000, 2)) {
+                    assertArrayEquals(bytes, readAll(is));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        File content = File.createTempFile("test", ".content");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Files.write(content.toPath(), new byte[1500]);
+            try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ);
+                 InputStream is = new PrefetchInputStream(executor, channel, 0, 3000, false, 1000, 2)) {
+                assertThrows(EOFException.class, () -> readAll(is));
+            }
+        } finally {
+            executor.shutdown();
+            if (!content.delete())
+                content.deleteOnExit();
+        }
+    }
+
+}
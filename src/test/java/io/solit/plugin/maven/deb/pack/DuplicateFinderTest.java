@@ -0,0 +1,81 @@
+package io.solit.plugin.maven.deb.pack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class DuplicateFinderTest {
+    private static final int MODE = 0100644;
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    private static Path write(Path root, String name, String content) throws IOException {
+        return Files.write(root.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static DuplicateFinder.Duplicate findOrAdd(DuplicateFinder finder, Path file, int mode) throws IOException {
+        return finder.findOrAdd(file, Files.size(file), mode, file.getFileName().toString());
+    }
+
+    @Test
+    public void testSizeThenContent() throws IOException, NoSuchAlgorithmException {
+        Path root = Files.createTempDirectory("stage");
+        try {
+            DuplicateFinder finder = new DuplicateFinder();
+            // files with a unique size are not read
+            assertNull(finder.findOrAdd(root.resolve("missing"), 100, MODE, "missing"));
+            assertNull(findOrAdd(finder, write(root, "a", "content"), MODE));
+            assertNull(findOrAdd(finder, write(root, "b", "another"), MODE));
+            assertNull(findOrAdd(finder, write(root, "c", "longer content"), MODE));
+            DuplicateFinder.Duplicate duplicate = findOrAdd(finder, write(root, "d", "content"), MODE);
+            assertNotNull(duplicate);
+            assertEquals("a", duplicate.getName());
+            byte[] md5 = MessageDigest.getInstance("MD5").digest("content".getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(md5, duplicate.getChecksum());
+            // a first added file stays a target of later duplicates
+            duplicate = findOrAdd(finder, write(root, "e", "content"), MODE);
+            assertNotNull(duplicate);
+            assertEquals("a", duplicate.getName());
+            duplicate = findOrAdd(finder, write(root, "f", "another"), MODE);
+            assertNotNull(duplicate);
+            assertEquals("b", duplicate.getName());
+            // files of a size, already seen, are read
+            assertThrows(IOException.class, () -> finder.findOrAdd(root.resolve("missing"), 7, MODE, "missing"));
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testPermissions() throws IOException {
+        Path root = Files.createTempDirectory("stage");
+        try {
+            DuplicateFinder finder = new DuplicateFinder();
+            assertNull(findOrAdd(finder, write(root, "a", "#!/bin/sh\n"), MODE));
+            assertNull(findOrAdd(finder, write(root, "b", "#!/bin/sh\n"), 0100755));
+            DuplicateFinder.Duplicate duplicate = findOrAdd(finder, write(root, "c", "#!/bin/sh\n"), 0100755);
+            assertNotNull(duplicate);
+            assertEquals("b", duplicate.getName());
+        } finally {
+            delete(root);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.solit.plugin.maven.deb.pack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PackageFingerprintTest {
+    private static final long MODIFIED = 1_500_000_000_000L;
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    private static PackageFingerprint fingerprint(Path stage, int directoryMode) throws IOException {
+        StageManifest manifest = StageManifest.scan(stage);
+        for (StageManifest.Entry e: manifest)
+            if (e.getType() == StageManifest.Type.DIRECTORY)
+                e.setMode(directoryMode);
+        PackageFingerprint result = new PackageFingerprint("configuration");
+        result.scan("data", manifest);
+        return result;
+    }
+
+    @Test
+    public void testUpToDate() throws IOException {
+        Path root = Files.createTempDirectory("fingerprint");
+        try {
+            Path stage = root.resolve("stage"), dir = stage.resolve("usr/share/app"), file = dir.resolve("file");
+            Files.createDirectories(dir);
+            Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(MODIFIED));
+            File target = Files.write(root.resolve("test.deb"), new byte[] {1}).toFile();
+            File saved = root.resolve("test.deb.fingerprint").toFile();
+            //noinspection OctalInteger
+            PackageFingerprint first = fingerprint(stage, 040755);
+            first.setChecksum("data", "usr/share/app/file", "9a0364b9e99bb480dd25e1f0284c8555");
+            first.setTarget(target);
+            first.save(saved);
+            //noinspection OctalInteger
+            assertTrue(fingerprint(stage, 040755).isUpToDate(PackageFingerprint.load(saved), target));
+            // file, touched without changing its content, is compared by a checksum
+            Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED + 1000));
+            //noinspection OctalInteger
+            assertTrue(fingerprint(stage, 040755).isUpToDate(PackageFingerprint.load(saved), target));
+            // directory modification time and mode are packaged as they are
+            //noinspection OctalInteger
+            assertFalse(fingerprint(stage, 040700).isUpToDate(PackageFingerprint.load(saved), target));
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(MODIFIED + 1000));
+            //noinspection OctalInteger
+            assertFalse(fingerprint(stage, 040755).isUpToDate(PackageFingerprint.load(saved), target));
+        } finally {
+            delete(root);
+        }
+    }
+}
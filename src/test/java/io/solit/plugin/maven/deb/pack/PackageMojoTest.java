@@ -0,0 +1,315 @@
+package io.solit.plugin.maven.deb.pack;
+
+import io.solit.plugin.maven.deb.VirtualStage;
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PackageMojoTest {
+    private static final long SOURCE_DATE = 1_500_000_000L;
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    private static void set(Object mojo, String name, Object value) {
+        try {
+            Field field = mojo.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(mojo, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a mojo, configured as maven would configure it within a project directory
+     */
+    private static PackageMojo createMojo(Path project, String target) {
+        PackageMojo mojo = new PackageMojo();
+        File build = project.resolve("target").toFile();
+        set(mojo, "buildDir", build);
+        set(mojo, "stageDir", new File(build, "deb"));
+        set(mojo, "controlDir", new File(build, "control"));
+        set(mojo, "dataSourceDir", project.resolve("src/deb/data").toFile());
+        set(mojo, "controlSourceDir", project.resolve("src/deb/control").toFile());
+        set(mojo, "segmentCacheDir", project.resolve("cache").toFile());
+        set(mojo, "target", new File(build, target));
+        set(mojo, "packageName", "test");
+        set(mojo, "version", "1.0");
+        set(mojo, "maintainer", "Maintainer");
+        set(mojo, "synopsis", "Test package");
+        return mojo;
+    }
+
+    private static Link link(String name, String destination) {
+        Link link = new Link();
+        link.setLinkName(name);
+        link.setLinkDestination(destination);
+        return link;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void touch(Path root, long seconds) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files::iterator)
+                Files.setLastModifiedTime(p, FileTime.fromMillis(seconds * 1000));
+        }
+    }
+
+    /**
+     * Read a gzip compressed archive of a deb file
+     * @return archive entries with their contents, in an archive order
+     */
+    private static Map<TarArchiveEntry, byte[]> readArchive(Path deb, String member) throws IOException {
+        try (ArArchiveInputStream ar = new ArArchiveInputStream(Files.newInputStream(deb))) {
+            for (ArArchiveEntry e = ar.getNextArEntry(); e != null; e = ar.getNextArEntry()) {
+                if (!e.getName().equals(member))
+                    continue;
+                byte[] content = new byte[(int) e.getLength()];
+                for (int read = 0; read < content.length; )
+                    read += ar.read(content, read, content.length - read);
+                Map<TarArchiveEntry, byte[]> entries = new LinkedHashMap<>();
+                try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                        new GZIPInputStream(new ByteArrayInputStream(content)))) {
+                    for (TarArchiveEntry t = tar.getNextTarEntry(); t != null; t = tar.getNextTarEntry())
+                        entries.put(t, readAll(tar));
+                }
+                return entries;
+            }
+        }
+        throw new FileNotFoundException(member + " is not found in " + deb);
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[0x2000];
+        for (int read = is.read(buffer); read >= 0; read = is.read(buffer))
+            os.write(buffer, 0, read);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testReproducible() throws IOException, MojoExecutionException, MojoFailureException {
+        Path project = Files.createTempDirectory("project");
+        try {
+            Path stage = project.resolve("target/deb"), control = project.resolve("target/control");
+            write(stage.resolve("usr/share/test/b.txt"), "b");
+            write(stage.resolve("usr/share/test/a.txt"), "a");
+            write(stage.resolve("usr/bin/test"), "#!/bin/sh\n");
+            write(control.resolve("postinst"), "#!/bin/sh\n");
+            touch(project, SOURCE_DATE + 1000);
+            PackageMojo first = createMojo(project, "first.deb");
+            set(first, "reproducible", true);
+            set(first, "outputTimestamp", String.valueOf(SOURCE_DATE));
+            set(first, "checksumThreads", 4);
+            first.execute();
+            // files, modified after a source date, are packaged as if they were modified at it
+            touch(project, SOURCE_DATE + 2000);
+            PackageMojo second = createMojo(project, "second.deb");
+            set(second, "reproducible", true);
+            set(second, "outputTimestamp", String.valueOf(SOURCE_DATE));
+            set(second, "singlePass", true);
+            second.execute();
+            byte[] firstBytes = Files.readAllBytes(project.resolve("target/first.deb"));
+            assertArrayEquals(firstBytes, Files.readAllBytes(project.resolve("target/second.deb")));
+            touch(stage, SOURCE_DATE - 1000);
+            PackageMojo third = createMojo(project, "third.deb");
+            set(third, "reproducible", true);
+            set(third, "outputTimestamp", String.valueOf(SOURCE_DATE));
+            third.execute();
+            assertFalse(Arrays.equals(firstBytes, Files.readAllBytes(project.resolve("target/third.deb"))));
+        } finally {
+            delete(project);
+        }
+    }
+
+    @Test
+    public void testDeduplicate() throws IOException, MojoExecutionException, MojoFailureException {
+        Path project = Files.createTempDirectory("project");
+        try {
+            Path stage = project.resolve("target/deb");
+            char[] content = new char[100 * 1024];
+            Arrays.fill(content, 'x');
+            write(stage.resolve("usr/share/test/b.txt"), new String(content));
+            write(stage.resolve("usr/share/test/a.txt"), new String(content));
+            write(stage.resolve("usr/share/test/c/a.txt"), new String(content));
+            Arrays.fill(content, 'y');
+            write(stage.resolve("usr/share/test/d.txt"), new String(content));
+            for (boolean singlePass: new boolean[] {false, true}) {
+                PackageMojo mojo = createMojo(project, singlePass + ".deb");
+                set(mojo, "deduplicate", true);
+                set(mojo, "singlePass", singlePass);
+                mojo.execute();
+                Path deb = project.resolve("target/" + singlePass + ".deb");
+                Map<String, TarArchiveEntry> data = new LinkedHashMap<>();
+                for (TarArchiveEntry e: readArchive(deb, "data.tar.gz").keySet())
+                    data.put(e.getName(), e);
+                // a first file in a name order is a target of links
+                TarArchiveEntry first = data.get("usr/share/test/a.txt");
+                assertTrue(first.isFile());
+                assertEquals(content.length, first.getSize());
+                for (String name: Arrays.asList("usr/share/test/b.txt", "usr/share/test/c/a.txt")) {
+                    TarArchiveEntry link = data.get(name);
+                    assertTrue(link.isLink(), name);
+                    assertEquals("usr/share/test/a.txt", link.getLinkName());
+                    assertEquals(0, link.getSize());
+                }
+                // same size, but a different content
+                assertTrue(data.get("usr/share/test/d.txt").isFile());
+                String control = null, md5sums = null;
+                for (Map.Entry<TarArchiveEntry, byte[]> e: readArchive(deb, "control.tar.gz").entrySet())
+                    if (e.getKey().getName().equals("control"))
+                        control = new String(e.getValue(), StandardCharsets.UTF_8);
+                    else if (e.getKey().getName().equals("md5sums"))
+                        md5sums = new String(e.getValue(), StandardCharsets.UTF_8);
+                assertNotNull(control);
+                assertNotNull(md5sums);
+                // shared content is installed once
+                assertTrue(control.contains("Installed-Size: 200\n"), control);
+                assertEquals(4, md5sums.split("\n").length);
+            }
+        } finally {
+            delete(project);
+        }
+    }
+
+    @Test
+    public void testResolveLink() {
+        Map<String, String> links = new HashMap<>();
+        links.put("usr/lib/app/current", "1.0");
+        links.put("usr/lib/app/1.0/conf", "../../../../etc/app");
+        links.put("usr/bin/app", "/usr/lib/app/current/bin/app");
+        links.put("opt/app", "/usr/lib/app/current/");
+        links.put("opt/a", "b");
+        links.put("opt/b", "./a");
+        links.put("opt/self", "../opt/self");
+        assertEquals("usr/lib/app/1.0", PackageMojo.resolveLink(links, "usr/lib/app/current"));
+        assertEquals("etc/app", PackageMojo.resolveLink(links, "usr/lib/app/1.0/conf"));
+        assertEquals("usr/lib/app/1.0/bin/app", PackageMojo.resolveLink(links, "usr/bin/app"));
+        assertEquals("usr/lib/app/1.0", PackageMojo.resolveLink(links, "opt/app"));
+        assertNull(PackageMojo.resolveLink(links, "opt/a"));
+        assertNull(PackageMojo.resolveLink(links, "opt/self"));
+        // a chain of 40 links is resolved, as a kernel would resolve it, while a longer one is a loop
+        Map<String, String> chain = new HashMap<>();
+        for (int i = 0; i < 41; i++)
+            chain.put("link" + i, "link" + (i + 1));
+        assertEquals("link41", PackageMojo.resolveLink(chain, "link1"));
+        assertNull(PackageMojo.resolveLink(chain, "link0"));
+    }
+
+    @Test
+    public void testSymbolicLinks() throws IOException, MojoExecutionException, MojoFailureException {
+        Path project = Files.createTempDirectory("project");
+        try {
+            Path stage = project.resolve("target/deb");
+            write(stage.resolve("usr/lib/app/1.0/app.jar"), "jar");
+            write(stage.resolve("usr/bin/app"), "#!/bin/sh\n");
+            touch(project, SOURCE_DATE);
+            PackageMojo loop = createMojo(project, "loop.deb");
+            set(loop, "symbolicLinks", Arrays.asList(link("/opt/a", "b"), link("/opt/b", "a")));
+            assertThrows(MojoFailureException.class, loop::execute);
+            PackageMojo conflict = createMojo(project, "conflict.deb");
+            set(conflict, "symbolicLinks", Collections.singletonList(link("/usr/bin/app", "../lib/app/1.0/app.jar")));
+            conflict.execute();
+            // staged file wins over a configured link of the same name
+            for (TarArchiveEntry e: readArchive(project.resolve("target/conflict.deb"), "data.tar.gz").keySet())
+                if (e.getName().equals("usr/bin/app"))
+                    assertTrue(e.isFile());
+                else
+                    assertFalse(e.isSymbolicLink(), e.getName());
+            PackageMojo twice = createMojo(project, "twice.deb");
+            set(twice, "symbolicLinks", Arrays.asList(link("/opt/app", "a"), link("opt/app", "b")));
+            assertThrows(MojoFailureException.class, twice::execute);
+            // configured links are not newer than staged files, whether or not a build is reproducible
+            for (String name: Arrays.asList("first.deb", "second.deb")) {
+                PackageMojo mojo = createMojo(project, name);
+                set(mojo, "symbolicLinks", Collections.singletonList(link("/usr/lib/app/current", "1.0")));
+                mojo.execute();
+                TarArchiveEntry current = null;
+                for (TarArchiveEntry e: readArchive(project.resolve("target/" + name), "data.tar.gz").keySet())
+                    if (e.getName().equals("usr/lib/app/current"))
+                        current = e;
+                assertNotNull(current);
+                assertTrue(current.isSymbolicLink());
+                assertEquals("1.0", current.getLinkName());
+                assertEquals(SOURCE_DATE * 1000, current.getModTime().getTime());
+            }
+        } finally {
+            delete(project);
+        }
+    }
+
+    @Test
+    public void testVirtualStage() throws IOException, MojoExecutionException, MojoFailureException {
+        Path project = Files.createTempDirectory("project");
+        try {
+            Path repository = project.resolve("repository");
+            write(repository.resolve("app.jar"), "app");
+            write(repository.resolve("lib.jar"), "lib");
+            // nothing is copied to a stage dir, and there is no data source dir
+            Files.createDirectories(project.resolve("target"));
+            VirtualStage virtual = new VirtualStage();
+            virtual.add("usr/share/app/app.jar", repository.resolve("app.jar"));
+            virtual.add("usr/share/app/lib/lib.jar", repository.resolve("lib.jar"));
+            virtual.save(VirtualStage.location(project.resolve("target/deb").toFile()));
+            for (int i = 0; i < 2; i++) {
+                PackageMojo mojo = createMojo(project, "test.deb");
+                set(mojo, "upToDateCheck", true);
+                set(mojo, "virtualStaging", true);
+                mojo.execute();
+            }
+            List<String> names = new ArrayList<>();
+            for (TarArchiveEntry e: readArchive(project.resolve("target/test.deb"), "data.tar.gz").keySet())
+                names.add(e.getName());
+            assertEquals(Arrays.asList(
+                    "usr/", "usr/share/", "usr/share/app/", "usr/share/app/app.jar",
+                    "usr/share/app/lib/", "usr/share/app/lib/lib.jar"
+            ), names);
+            // a record of a previous build is ignored, unless virtual staging is set
+            createMojo(project, "stale.deb").execute();
+            assertTrue(readArchive(project.resolve("target/stale.deb"), "data.tar.gz").isEmpty());
+        } finally {
+            delete(project);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.solit.plugin.maven.deb.pack;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class PermissionMatcherTest {
+    private static final String[] DIRECTORIES = {"bin", "sbin", "usr", "lib", "share", "etc", "opt", "doc", "app", "conf"};
+    private static final String[] EXTENSIONS = {".sh", ".so", ".jar", ".conf", ".txt", ""};
+
+    private static PermissionModification rule(String permissions, List<String> include, List<String> exclude) {
+        return new PermissionModification(permissions, new HashSet<>(include), new HashSet<>(exclude));
+    }
+
+    private static StageManifest manifest(int files, Random random) {
+        StageManifest manifest = new StageManifest(null, false);
+        List<Integer> directories = new ArrayList<>(Collections.singletonList(-1));
+        for (int i = 0; i < files; i++) {
+            int parent = directories.get(random.nextInt(directories.size()));
+            if (random.nextInt(8) == 0)
+                directories.add(manifest.add(
+                        parent, DIRECTORIES[random.nextInt(DIRECTORIES.length)], StageManifest.Type.DIRECTORY, 0, 0, null
+                ));
+            else
+                manifest.add(parent, "f" + random.nextInt(50) + EXTENSIONS[random.nextInt(EXTENSIONS.length)],
+                        StageManifest.Type.FILE, 0, 0, null);
+        }
+        return manifest.complete();
+    }
+
+    private static List<PermissionModification> rules(int count, Random random) {
+        List<PermissionModification> rules = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String dir = DIRECTORIES[random.nextInt(DIRECTORIES.length)], ext = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            String sub = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+            String permissions = Integer.toOctalString(0400 + random.nextInt(0400));
+            switch (i % 5) {
+                case 0:
+                    rules.add(rule(permissions, Arrays.asList("/" + dir + "/*" + ext, "/" + sub + "/" + dir + "/*"),
+                            Collections.singletonList("/" + dir + "/f1" + ext)));
+                    break;
+                case 1:
+                    rules.add(rule(permissions, Collections.singletonList("/" + dir + "/**" + ext),
+                            Collections.singletonList("/" + dir + "/" + sub + "/**")));
+                    break;
+                case 2:
+                    rules.add(rule(permissions, Collections.singletonList("**/f" + random.nextInt(50) + ext),
+                            Collections.emptyList()));
+                    break;
+                case 3:
+                    rules.add(rule(permissions, Collections.singletonList("/{" + dir + "," + sub + "}/f[0-4]?" + ext),
+                            Collections.singletonList("/" + dir + "/f[!2]*")));
+                    break;
+                default:
+                    rules.add(rule(permissions, Collections.singletonList("/" + dir + "/" + sub + "/f" + random.nextInt(50) + ext),
+                            Collections.emptyList()));
+            }
+        }
+        rules.add(rule("644", Collections.emptyList(), Collections.singletonList("/**.sh")));
+        return rules;
+    }
+
+    /**
+     * Apply rules the way they were applied before a matcher, by checking path matchers of every rule one by one
+     */
+    private static int[] applyLinear(StageManifest manifest, List<PermissionModification> rules) {
+        FileSystem fs = FileSystems.getDefault();
+        Path root = Paths.get(File.separator);
+        int[] modes = new int[manifest.size()];
+        int i = 0;
+        for (StageManifest.Entry e: manifest) {
+            e.setMode(0100000);
+            Path path = root.resolve(e.getName());
+            for (PermissionModification r: rules) {
+                if (!r.getInclude().isEmpty() && r.getInclude().stream()
+                        .noneMatch(s -> fs.getPathMatcher("glob:" + s.trim()).matches(path)))
+                    continue;
+                if (r.getExclude().stream().anyMatch(s -> fs.getPathMatcher("glob:" + s.trim()).matches(path)))
+                    continue;
+                e.setMode((e.getMode() & PermissionModification.TYPE_MASK) | Integer.parseInt(r.getPermissions(), 8));
+                break;
+            }
+            modes[i++] = e.getMode();
+        }
+        return modes;
+    }
+
+    private static int[] applyMatcher(StageManifest manifest, List<PermissionModification> rules) {
+        PermissionMatcher matcher = PermissionMatcher.compile(rules);
+        int[] modes = new int[manifest.size()];
+        int i = 0;
+        for (StageManifest.Entry e: manifest) {
+            e.setMode(0100000);
+            matcher.apply(e);
+            modes[i++] = e.getMode();
+        }
+        return modes;
+    }
+
+    @Test
+    public void testMatch() {
+        PermissionMatcher matcher = PermissionMatcher.compile(Arrays.asList(
+                rule("700", Arrays.asList("/usr/bin/secret", "/etc/**"), Collections.singletonList("/etc/*.conf")),
+                rule("755", Arrays.asList("/bin/*", "/usr/bin/*"), Collections.emptyList()),
+                rule("600", Collections.singletonList("*.key"), Collections.emptyList()),
+                rule("640", Collections.singletonList("**.key"), Collections.emptyList()),
+                rule("644", Collections.emptyList(), Collections.singletonList("/usr/**"))
+        ));
+        assertEquals(0, matcher.match("usr/bin/secret"));
+        assertEquals(0, matcher.match("etc/app/app.conf"));
+        assertEquals(4, matcher.match("etc/app.conf"));
+        assertEquals(1, matcher.match("usr/bin/tool"));
+        assertEquals(3, matcher.match("opt/app.key"));
+        assertEquals(-1, matcher.match("usr/lib/lib.so"));
+        assertEquals(4, matcher.match("usr"));
+        assertEquals(0755, matcher.getPermissions(1));
+    }
+
+    @Test
+    public void testSyntax() {
+        assertEquals("/a/[^/]*\\.so", PermissionMatcher.toRegex("/a/*.so"));
+        assertThrows(PatternSyntaxException.class, () -> PermissionMatcher.toRegex("/a/{b,{c}}"));
+        assertThrows(PatternSyntaxException.class, () -> PermissionMatcher.toRegex("/a/[b"));
+        assertThrows(IllegalArgumentException.class, () -> PermissionMatcher.compile(Collections.singletonList(
+                rule("rwx", Collections.emptyList(), Collections.emptyList())
+        )));
+    }
+
+    @Test
+    public void testSameAsPathMatchers() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10; i++) {
+            StageManifest manifest = manifest(5000, random);
+            List<PermissionModification> rules = rules(40, random);
+            assertArrayEquals(applyLinear(manifest, rules), applyMatcher(manifest, rules));
+        }
+    }
+}
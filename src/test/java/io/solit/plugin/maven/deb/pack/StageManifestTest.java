@@ -0,0 +1,231 @@
+package io.solit.plugin.maven.deb.pack;
+
+import io.solit.plugin.maven.deb.VirtualStage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class StageManifestTest {
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        Path root = Files.createTempDirectory("stage");
+        try {
+            Files.createDirectories(root.resolve("usr/share/b"));
+            Files.createDirectories(root.resolve("usr/share/a"));
+            Files.write(root.resolve("usr/share/b/file"), "content".getBytes(StandardCharsets.UTF_8));
+            Files.write(root.resolve("usr/share/a/file"), "other content".getBytes(StandardCharsets.UTF_8));
+            Files.write(root.resolve("usr/share/b.txt"), new byte[0]);
+            StageManifest manifest = StageManifest.scan(root, null, true, true);
+            List<String> names = new ArrayList<>();
+            for (StageManifest.Entry e: manifest) {
+                names.add(e.getName());
+                assertEquals(root.resolve(e.getName()), e.getFile());
+                if (e.getType() == StageManifest.Type.FILE) {
+                    assertEquals(Files.size(e.getFile()), e.getSize());
+                    assertEquals(Files.getLastModifiedTime(e.getFile()).toMillis(), e.getModified());
+                }
+            }
+            assertEquals(Arrays.asList(
+                    "usr", "usr/share", "usr/share/a", "usr/share/a/file", "usr/share/b", "usr/share/b/file", "usr/share/b.txt"
+            ), names);
+            assertEquals(20, manifest.getFilesSize());
+            assertEquals(0, StageManifest.scan(root.resolve("missing")).size());
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testSymbolicLinks() throws IOException {
+        Path root = Files.createTempDirectory("stage");
+        try {
+            Files.createDirectories(root.resolve("lib"));
+            Files.write(root.resolve("lib/file"), "content".getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.createSymbolicLink(root.resolve("link"), root.getFileSystem().getPath("lib"));
+                Files.createSymbolicLink(root.resolve("missing"), root.getFileSystem().getPath("lib/missing"));
+            } catch (UnsupportedOperationException | IOException e) {
+                return;
+            }
+            List<String> followed = new ArrayList<>();
+            for (StageManifest.Entry e: StageManifest.scan(root))
+                followed.add(e.getType() + " " + e.getName());
+            assertEquals(Arrays.asList(
+                    "DIRECTORY lib", "FILE lib/file", "DIRECTORY link", "FILE link/file", "SYMLINK missing"
+            ), followed);
+            List<String> preserved = new ArrayList<>();
+            for (StageManifest.Entry e: StageManifest.scan(root, null, false, false))
+                preserved.add(e.getType() + " " + e.getName() + (e.getLinkTarget() == null ? "" : " " + e.getLinkTarget()));
+            assertEquals(Arrays.asList(
+                    "DIRECTORY lib", "FILE lib/file", "SYMLINK link lib", "SYMLINK missing lib/missing"
+            ), preserved);
+            Files.createSymbolicLink(root.resolve("lib/loop"), root.getFileSystem().getPath(".."));
+            assertThrows(FileSystemLoopException.class, () -> StageManifest.scan(root));
+            assertEquals(5, StageManifest.scan(root, null, false, false).size());
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testVirtualStage() throws IOException {
+        Path root = Files.createTempDirectory("stage"), repository = Files.createTempDirectory("repository");
+        try {
+            Files.createDirectories(root.resolve("usr/share/app"));
+            Files.write(root.resolve("usr/share/app/a.jar"), "staged".getBytes(StandardCharsets.UTF_8));
+            Files.write(repository.resolve("a.jar"), "virtual a".getBytes(StandardCharsets.UTF_8));
+            Files.write(repository.resolve("b.jar"), "virtual b".getBytes(StandardCharsets.UTF_8));
+            VirtualStage virtual = new VirtualStage();
+            assertTrue(virtual.add("usr/share/app/b.jar", repository.resolve("b.jar")));
+            assertTrue(virtual.add("usr/share/app/a.jar", repository.resolve("a.jar")));
+            assertTrue(virtual.add("usr/lib/app/b.jar", repository.resolve("b.jar")));
+            assertFalse(virtual.add("usr/lib/app/b.jar", repository.resolve("a.jar")));
+            Path saved = VirtualStage.location(root.toFile());
+            virtual.save(saved);
+            virtual = VirtualStage.load(saved);
+            assertEquals(3, virtual.getFiles().size());
+            List<String> entries = new ArrayList<>();
+            for (StageManifest.Entry e: StageManifest.scan(root, virtual, true, false))
+                entries.add(e.getType() + " " + e.getName() + (e.getType() == StageManifest.Type.FILE ?
+                        " " + new String(Files.readAllBytes(e.getFile()), StandardCharsets.UTF_8) : ""));
+            assertEquals(Arrays.asList(
+                    "DIRECTORY usr", "DIRECTORY usr/lib", "DIRECTORY usr/lib/app", "FILE usr/lib/app/b.jar virtual b",
+                    "DIRECTORY usr/share", "DIRECTORY usr/share/app",
+                    "FILE usr/share/app/a.jar staged", "FILE usr/share/app/b.jar virtual b"
+            ), entries);
+            // directories, containing only virtual files, have no staged file
+            for (StageManifest.Entry e: StageManifest.scan(root, virtual, true, false))
+                if (e.getName().startsWith("usr/lib"))
+                    assertEquals(e.getType() == StageManifest.Type.DIRECTORY, e.getFile() == null, e.getName());
+                else
+                    assertTrue(Files.exists(e.getFile()), e.getName());
+            new VirtualStage().save(saved);
+            assertFalse(Files.exists(saved));
+            Files.delete(repository.resolve("b.jar"));
+            VirtualStage missing = new VirtualStage();
+            missing.add("b.jar", repository.resolve("b.jar"));
+            assertThrows(IOException.class, () -> StageManifest.scan(root.resolve("missing"), missing, true, false));
+        } finally {
+            delete(root);
+            delete(repository);
+        }
+    }
+
+    @Test
+    public void testLayers() throws IOException {
+        Path stage = Files.createTempDirectory("stage"), source = Files.createTempDirectory("source");
+        Path extra = Files.createTempDirectory("extra");
+        try {
+            Files.createDirectories(stage.resolve("usr/share/app"));
+            Files.write(stage.resolve("usr/share/app/a"), "stage a".getBytes(StandardCharsets.UTF_8));
+            Files.write(stage.resolve("etc"), "stage etc".getBytes(StandardCharsets.UTF_8));
+            Files.createDirectories(source.resolve("usr/share/app"));
+            Files.createDirectories(source.resolve("etc/app"));
+            Files.write(source.resolve("usr/share/app/a"), "source a".getBytes(StandardCharsets.UTF_8));
+            Files.write(source.resolve("usr/share/app/b"), "source b".getBytes(StandardCharsets.UTF_8));
+            Files.write(source.resolve("etc/app/conf"), "source conf".getBytes(StandardCharsets.UTF_8));
+            Files.createDirectories(extra.resolve("usr/share/app"));
+            Files.createDirectories(extra.resolve("usr/bin"));
+            Files.write(extra.resolve("usr/share/app/b"), "extra b".getBytes(StandardCharsets.UTF_8));
+            Files.write(extra.resolve("usr/share/app/c"), "extra c".getBytes(StandardCharsets.UTF_8));
+            Files.write(extra.resolve("usr/bin/app"), "extra app".getBytes(StandardCharsets.UTF_8));
+            List<Path> roots = Arrays.asList(stage, source, stage.resolve("missing"), extra, source);
+            List<String> entries = new ArrayList<>();
+            StageManifest manifest = StageManifest.scan(roots, null, true, false);
+            for (StageManifest.Entry e: manifest)
+                entries.add(e.getType() + " " + e.getName() + (e.getType() == StageManifest.Type.FILE ?
+                        " " + new String(Files.readAllBytes(e.getFile()), StandardCharsets.UTF_8) : ""));
+            assertEquals(Arrays.asList(
+                    "FILE etc stage etc", "DIRECTORY usr", "DIRECTORY usr/bin", "FILE usr/bin/app extra app",
+                    "DIRECTORY usr/share", "DIRECTORY usr/share/app", "FILE usr/share/app/a stage a",
+                    "FILE usr/share/app/b source b", "FILE usr/share/app/c extra c"
+            ), entries);
+            assertEquals(roots, manifest.getRoots());
+            assertEquals(0, StageManifest.scan(Arrays.asList(stage.resolve("missing"), extra.resolve("missing")),
+                    null, true, false).size());
+        } finally {
+            delete(stage);
+            delete(source);
+            delete(extra);
+        }
+    }
+
+    @Test
+    public void testChecksums() {
+        StageManifest manifest = new StageManifest(null, false);
+        manifest.add(-1, "a", StageManifest.Type.FILE, 1, 0, null);
+        manifest.add(-1, "b", StageManifest.Type.FILE, 1, 0, null);
+        manifest.complete();
+        byte[] checksum = new byte[16];
+        Arrays.fill(checksum, (byte) 7);
+        StageManifest.Entry last = null;
+        for (StageManifest.Entry e: manifest)
+            last = e;
+        assertNotNull(last);
+        assertNull(last.getChecksum());
+        last.setChecksum(checksum);
+        assertArrayEquals(checksum, last.getChecksum());
+        assertNull(manifest.iterator().next().getChecksum());
+        assertThrows(IllegalArgumentException.class, () -> manifest.iterator().next().setChecksum(new byte[4]));
+    }
+
+    @Test
+    public void testNames() {
+        // entries of a walk: directories, followed by their content, with names repeated in every directory
+        StageManifest manifest = new StageManifest(null, false);
+        int share = manifest.add(-1, "share", StageManifest.Type.DIRECTORY, 0, 0, null);
+        for (int d = 0; d < 3; d++) {
+            int dir = manifest.add(share, "d" + d, StageManifest.Type.DIRECTORY, 0, 0, null);
+            int nested = manifest.add(dir, "nested", StageManifest.Type.DIRECTORY, 0, 0, null);
+            manifest.add(nested, "file.dat", StageManifest.Type.FILE, 1, 0, null);
+            manifest.add(dir, new String("file.dat"), StageManifest.Type.FILE, 1, 0, null);
+            manifest.add(dir, "link", StageManifest.Type.SYMLINK, 0, 0, "file.dat");
+        }
+        manifest.add(-1, "last", StageManifest.Type.FILE, 1, 0, null);
+        manifest.complete();
+        List<String> names = new ArrayList<>();
+        String shared = null;
+        for (StageManifest.Entry e: manifest) {
+            names.add(e.getName() + (e.getLinkTarget() == null ? "" : " " + e.getLinkTarget()));
+            if (e.getFileName().equals("file.dat")) {
+                // components of the same name are shared by every entry
+                if (shared == null)
+                    shared = e.getFileName();
+                assertSame(shared, e.getFileName());
+            }
+        }
+        assertEquals(Arrays.asList(
+                "share",
+                "share/d0", "share/d0/nested", "share/d0/nested/file.dat",
+                "share/d0/file.dat", "share/d0/link file.dat",
+                "share/d1", "share/d1/nested", "share/d1/nested/file.dat",
+                "share/d1/file.dat", "share/d1/link file.dat",
+                "share/d2", "share/d2/nested", "share/d2/nested/file.dat",
+                "share/d2/file.dat", "share/d2/link file.dat",
+                "last"
+        ), names);
+    }
+}
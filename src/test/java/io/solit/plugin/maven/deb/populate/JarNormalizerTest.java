@@ -0,0 +1,161 @@
+package io.solit.plugin.maven.deb.populate;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author yaga
+ * @since 16.10.26
+ */
+public class JarNormalizerTest {
+    private static final String MANIFEST = "Manifest-Version: 1.0\r\nMain-Class: a.Main\r\n\r\n";
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    /**
+     * Write a deflated jar with given entries, names followed by their contents
+     */
+    private static void writeJar(Path jar, long time, String... entries) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                ZipEntry entry = new ZipEntry(entries[i]);
+                entry.setTime(time);
+                zip.putNextEntry(entry);
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        byte[] buffer = new byte[0x2000], result = new byte[0];
+        for (int read = is.read(buffer); read >= 0; read = is.read(buffer)) {
+            result = Arrays.copyOf(result, result.length + read);
+            System.arraycopy(buffer, 0, result, result.length - read, read);
+        }
+        return result;
+    }
+
+    @Test
+    public void testNormalize() throws IOException {
+        Path root = Files.createTempDirectory("jars");
+        try {
+            Path source = root.resolve("source.jar"), target = root.resolve("target.jar");
+            writeJar(source, System.currentTimeMillis(),
+                    "b/B.class", "class b", "a/A.class", "class a", "META-INF/MANIFEST.MF", MANIFEST,
+                    "META-INF/", "", "LICENSE", "license"
+            );
+            Files.setLastModifiedTime(source, FileTime.fromMillis(1_500_000_000_000L));
+            JarNormalizer normalizer = new JarNormalizer();
+            assertTrue(normalizer.normalize(source, target));
+            assertEquals(1, normalizer.getJars());
+            assertEquals(Files.size(source), normalizer.getSourceSize());
+            assertEquals(Files.size(target), normalizer.getTargetSize());
+            assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(target));
+            List<String> names = new ArrayList<>();
+            try (ZipFile zip = new ZipFile(target.toFile()); ZipFile original = new ZipFile(source.toFile())) {
+                long time = -1;
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    names.add(entry.getName());
+                    assertEquals(ZipEntry.STORED, entry.getMethod(), entry.getName());
+                    if (time < 0)
+                        time = entry.getTime();
+                    assertEquals(time, entry.getTime(), entry.getName());
+                    byte[] content;
+                    try (InputStream is = zip.getInputStream(entry)) {
+                        content = readAll(is);
+                    }
+                    try (InputStream is = original.getInputStream(original.getEntry(entry.getName()))) {
+                        assertArrayEquals(readAll(is), content, entry.getName());
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    assertEquals(crc.getValue(), entry.getCrc(), entry.getName());
+                    assertEquals(content.length, entry.getSize(), entry.getName());
+                    assertEquals(content.length, entry.getCompressedSize(), entry.getName());
+                }
+            }
+            assertEquals(Arrays.asList("META-INF/", "META-INF/MANIFEST.MF", "LICENSE", "a/A.class", "b/B.class"), names);
+            try (JarInputStream jar = new JarInputStream(Files.newInputStream(target))) {
+                assertNotNull(jar.getManifest());
+                assertEquals("a.Main", jar.getManifest().getMainAttributes().getValue("Main-Class"));
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testReproducible() throws IOException {
+        Path root = Files.createTempDirectory("jars");
+        try {
+            Path first = root.resolve("first.jar"), second = root.resolve("second.jar");
+            // the same content, zipped at different times and in a different order
+            writeJar(first, 1_500_000_000_000L, "a/A.class", "class a", "b/B.class", "class b");
+            writeJar(second, 1_600_000_000_000L, "b/B.class", "class b", "a/A.class", "class a");
+            JarNormalizer normalizer = new JarNormalizer();
+            assertTrue(normalizer.normalize(first, root.resolve("first.normalized.jar")));
+            assertTrue(normalizer.normalize(second, root.resolve("second.normalized.jar")));
+            assertFalse(Arrays.equals(Files.readAllBytes(first), Files.readAllBytes(second)));
+            assertArrayEquals(
+                    Files.readAllBytes(root.resolve("first.normalized.jar")),
+                    Files.readAllBytes(root.resolve("second.normalized.jar"))
+            );
+            assertEquals(2, normalizer.getJars());
+        } finally {
+            delete(root);
+        }
+    }
+
+    @Test
+    public void testCopiedAsIs() throws IOException {
+        Path root = Files.createTempDirectory("jars");
+        try {
+            Path signed = root.resolve("signed.jar"), invalid = root.resolve("invalid.jar");
+            writeJar(signed, 1_500_000_000_000L,
+                    "META-INF/MANIFEST.MF", MANIFEST, "META-INF/SIGNER.SF", "signature",
+                    "META-INF/SIGNER.RSA", "block", "a/A.class", "class a"
+            );
+            Files.write(invalid, "not a zip file".getBytes(StandardCharsets.UTF_8));
+            JarNormalizer normalizer = new JarNormalizer();
+            for (Path source: Arrays.asList(signed, invalid)) {
+                Path target = root.resolve("copy-" + source.getFileName());
+                Files.setLastModifiedTime(source, FileTime.fromMillis(1_500_000_000_000L));
+                assertFalse(normalizer.normalize(source, target));
+                assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+                assertEquals(Files.getLastModifiedTime(source), Files.getLastModifiedTime(target));
+            }
+            assertEquals(0, normalizer.getJars());
+            try (Stream<Path> files = Files.list(root)) {
+                assertEquals(4, files.count());
+            }
+        } finally {
+            delete(root);
+        }
+    }
+}